@@ -38,8 +38,20 @@
 #include "jni-common.h"
 
 #include <assert.h>
+#include <stdint.h>
 #include <string.h>
 
+static JavaVM* java_vm = NULL;
+
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* reserved) {
+    JNIEnv* env;
+    if ((*vm)->GetEnv(vm, (void**) &env, JNI_VERSION_1_6) != JNI_OK) {
+        return JNI_ERR;
+    }
+    java_vm = vm;
+    return JNI_VERSION_1_6;
+}
+
 /*
  * Throw an exception by name
  */
@@ -73,7 +85,7 @@ jlong getJavaLongField(JNIEnv* env, jobject obj, char* name) {
     assert(cls);
     jfieldID fid = (*env)->GetFieldID(env, cls, name, "J");
     assert(fid);
-    jint value = (jint)(*env)->GetLongField(env, obj, fid);
+    jlong value = (*env)->GetLongField(env, obj, fid);
     return value;
 
 }
@@ -86,151 +98,50 @@ void setJavaLongField(JNIEnv* env, jobject obj, char* name, jlong value) {
     (*env)->SetLongField(env, obj, fid, value);
 }
 
-jbyteArray getJavaByteArrayField(JNIEnv* env, jobject obj, char* name) {
-
-    jclass cls = (*env)->GetObjectClass(env, obj);
-    assert(cls);
-    jfieldID fid = (*env)->GetFieldID(env, cls, name, "[B");
-    assert(fid);
-    jbyteArray array = (*env)->GetObjectField(env, obj, fid);
-    assert(array);
-    return array;
-
-}
-
-void setJavaByteArrayField(JNIEnv* env, jobject obj, char* name,
-        jbyteArray array) {
-
-    jclass cls = (*env)->GetObjectClass(env, obj);
-    assert(cls);
-    jfieldID fid = (*env)->GetFieldID(env, cls, name, "[B");
-    assert(fid);
-
-    (*env)->SetObjectField(env, obj, fid, array);
-    return;
+jmethodID getJavaMethodID(JNIEnv* env, jclass clz, const char* name,
+        const char* signature) {
+    jmethodID mid = (*env)->GetMethodID(env, clz, name, signature);
+    assert(mid);
+    return mid;
 }
 
-void callJavaVoidMethod(JNIEnv* env, jobject obj, const char* method_name) {
-
-    jclass cls = (*env)->GetObjectClass(env, obj);
-    if (cls == NULL) {
-        printf("unable to get class of object");
-        return;
-    }
-    jmethodID mid = (*env)->GetMethodID(env, cls, method_name, "()V");
-    if (mid == NULL) {
-        printf("unable to get method %s\n", method_name);
-        return;
-
-    }
+void callJavaVoidMethod(JNIEnv* env, jobject obj, jmethodID mid) {
+    assert(mid);
     (*env)->CallVoidMethod(env, obj, mid);
-
-    return;
-
 }
 
-jobject getLockObject(JNIEnv* env) {
-
-    const char* eventLoopClassName =
-            "org/classpath/icedtea/pulseaudio/EventLoop";
-
-    jclass eventLoopClass = (*env)->FindClass(env, eventLoopClassName);
-    assert(eventLoopClass);
-
-    const char* getEventLoopIDSignature =
-            "()Lorg/classpath/icedtea/pulseaudio/EventLoop;";
-    jmethodID getEventLoopID = (*env)->GetStaticMethodID(env, eventLoopClass, "getEventLoop",
-            getEventLoopIDSignature);
-    assert(getEventLoopID);
-
-    jobject eventLoop = (*env)->CallStaticObjectMethod(env, eventLoopClass, getEventLoopID);
-    assert(eventLoop);
-
-    jfieldID lockID = (*env)->GetFieldID(env, eventLoopClass, "threadLock",
-            "Ljava/lang/Object;");
-    assert(lockID);
-
-    jobject lockObject = (*env)->GetObjectField(env, eventLoop, lockID);
-    assert(lockObject);
-    return lockObject;
-
+JNIEnv* getCurrentEnv(void) {
+    JNIEnv* env = NULL;
+    jint result = (*java_vm)->GetEnv(java_vm, (void**) &env, JNI_VERSION_1_6);
+    assert(result == JNI_OK);
+    return env;
 }
 
-void notifyWaitingOperations(JNIEnv* env) {
-    jobject lockObject = getLockObject(env);
-
-    (*env)->MonitorEnter(env, lockObject);
-
-    jclass objectClass = (*env)->FindClass(env, "java/lang/Object");
-    assert(objectClass);
-    jmethodID notifyAllID = (*env)->GetMethodID(env, objectClass, "notifyAll", "()V");
-    assert(notifyAllID);
-
-    (*env)->CallObjectMethod(env, lockObject, notifyAllID);
-
-    (*env)->MonitorExit(env, lockObject);
-
+JavaVM* getJavaVM(void) {
+    assert(java_vm);
+    return java_vm;
 }
 
-void* getJavaPointer(JNIEnv* env, jobject obj, char* name) {
+jfieldID getJavaPointerFieldID(JNIEnv* env, jclass clz, const char* name) {
+    jfieldID fid = (*env)->GetFieldID(env, clz, name, "J");
+    assert(fid);
+    return fid;
+}
 
-    jbyteArray array = getJavaByteArrayField(env, obj, name);
-    assert(array);
-    void* value = convertJavaPointerToNative(env, array);
+void* getJavaPointer(JNIEnv* env, jobject obj, jfieldID fid) {
     // allow returning NULL values
-    return value;
+    return convertJavaPointerToNative((*env)->GetLongField(env, obj, fid));
 }
 
-void setJavaPointer(JNIEnv* env, jobject obj, char* name, void* value) {
-
+void setJavaPointer(JNIEnv* env, jobject obj, jfieldID fid, void* value) {
     // allow NULL for value
-    jbyteArray array = convertNativePointerToJava(env, value);
-    assert(array);
-    setJavaByteArrayField(env, obj, name, array);
-    return;
+    (*env)->SetLongField(env, obj, fid, convertNativePointerToJava(value));
 }
 
-void* convertJavaPointerToNative(JNIEnv* env, jbyteArray pointer) {
-    //    printf("convertJavaPointerToNative(): entering method\n");
-
-    void* returnPointer = NULL;
-
-    // this is not the pointer, but the container of the pointer
-    assert(pointer);
-
-    jsize len = (*env)->GetArrayLength(env, pointer);
-    assert(len);
-    assert(len == sizeof(returnPointer));
-
-    jbyte* data = (*env)->GetByteArrayElements(env, pointer, NULL);
-    if (data == NULL) {
-        return NULL; // oome;
-    }
-    memcpy(&returnPointer, data, sizeof(returnPointer));
-    (*env)->ReleaseByteArrayElements(env, pointer, data, 0);
-
-    //    printf("convertJavaPointerToNative(): leaving method\n");
-    return returnPointer;
+void* convertJavaPointerToNative(jlong pointer) {
+    return (void*) (intptr_t) pointer;
 }
 
-jbyteArray convertNativePointerToJava(JNIEnv* env, void* pointer) {
-    //    printf("convertNativePointerToJava(): entering method\n");
-
-    jbyteArray array = (*env)->NewByteArray(env, sizeof(pointer));
-    if (array == NULL) {
-        return 0; // oome?
-    }
-
-    jbyte* data = (*env)->GetByteArrayElements(env, array, NULL);
-    if (data == NULL) {
-        return 0; // oome
-    }
-
-    memcpy(data, &pointer, sizeof(pointer));
-    (*env)->ReleaseByteArrayElements(env, array, data, 0);
-
-    //    printf("convertNativePointerToJava(): leaving method\n");
-
-    return array;
+jlong convertNativePointerToJava(void* pointer) {
+    return (jlong) (intptr_t) pointer;
 }
-
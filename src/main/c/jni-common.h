@@ -67,11 +67,6 @@ void throwByName(JNIEnv* const env, const char* const name,
 #define ILLEGAL_ARGUMENT_EXCEPTION "java/lang/IllegalArgumentException"
 #define ILLEGAL_STATE_EXCEPTION "java/lang/IllegalStateException"
 
-/* Threading and Synchronization */
-
-jobject getLockObject(JNIEnv* env);
-void notifyWaitingOperations(JNIEnv* env);
-
 /* Storing and Loading Values */
 
 jint getJavaIntField(JNIEnv* env, jobject obj, char* fieldName);
@@ -80,21 +75,38 @@ void setJavaIntField(JNIEnv* env, jobject obj, char* fieldName, jint value);
 jlong getJavaLongField(JNIEnv* env, jobject obj, char* name);
 void setJavaLongField(JNIEnv* env, jobject, char* name, jlong value);
 
-jbyteArray getJavaByteArrayField(JNIEnv* env, jobject obj, char* name);
-void setJavaByteArrayField(JNIEnv* env, jobject obj, char* name,
-        jbyteArray array);
-
 /* Pointers and Java */
 
-void* getJavaPointer(JNIEnv* env, jobject obj, char* name);
-void setJavaPointer(JNIEnv* env, jobject obj, char*name, void* pointer_value);
+/*
+ * Native pointers are kept in java long fields. The field ids are looked up
+ * once, when the owning class is initialized, so that reading a pointer is a
+ * single GetLongField
+ */
+jfieldID getJavaPointerFieldID(JNIEnv* env, jclass clz, const char* name);
+
+void* getJavaPointer(JNIEnv* env, jobject obj, jfieldID fid);
+void setJavaPointer(JNIEnv* env, jobject obj, jfieldID fid, void* pointer_value);
 
-void* convertJavaPointerToNative(JNIEnv* env, jbyteArray pointer);
-jbyteArray convertNativePointerToJava(JNIEnv* env, void* pointer);
+void* convertJavaPointerToNative(jlong pointer);
+jlong convertNativePointerToJava(void* pointer);
 
 /* Calling Java Functions */
 
-void callJavaVoidMethod(JNIEnv* env, jobject obj, const char* method_name);
+jmethodID getJavaMethodID(JNIEnv* env, jclass clz, const char* name,
+        const char* signature);
+void callJavaVoidMethod(JNIEnv* env, jobject obj, jmethodID mid);
+
+/*
+ * The JNIEnv of the calling thread, which must be attached to the jvm. Each
+ * event loop calls into java from its own thread, so callbacks look their
+ * JNIEnv up rather than sharing one
+ */
+JNIEnv* getCurrentEnv(void);
+
+/*
+ * The jvm this library was loaded into, for attaching native threads
+ */
+JavaVM* getJavaVM(void);
 
 #endif
 
@@ -41,31 +41,42 @@
 #include "jni-common.h"
 
 #include <poll.h>
+#include <pthread.h>
 
 const int PA_ITERATE_BLOCK = 1;
 const int PA_ITERATE_NOBLOCK = 0;
 
-static java_context_t* java_context = NULL;
+/*
+ * There can be several event loops, each with its own mainloop and context.
+ * The callbacks of one get its java_context_t, which holds a global
+ * reference to the java EventLoop, as userdata. Its address is kept in the
+ * EventLoop's javaContextPointer field.
+ */
+static jfieldID mainloop_pointer_id = NULL;
+static jfieldID context_pointer_id = NULL;
+static jfieldID java_context_pointer_id = NULL;
 
-JNIEnv* pulse_thread_env = NULL;
+static jmethodID update_id = NULL;
+static jmethodID sink_callback_id = NULL;
+static jmethodID source_callback_id = NULL;
+static jmethodID lock_id = NULL;
+static jmethodID unlock_id = NULL;
+static jmethodID loop_thread_started_id = NULL;
+
+/* for detaching the pa_threaded_mainloop thread from the jvm */
+static pthread_key_t detach_key;
+static pthread_once_t detach_key_once = PTHREAD_ONCE_INIT;
 
 void sink_list_success_cb(pa_context *context, const pa_sink_info *i, int eol,
         void *userdata) {
 
+    java_context_t* java_context = userdata;
     if (eol == 0) {
-        jclass cls = (*pulse_thread_env)->GetObjectClass(pulse_thread_env,
-                java_context->obj);
-        assert(cls);
-        jstring name = (*pulse_thread_env)->NewStringUTF(pulse_thread_env, i->name);
+        JNIEnv* env = getCurrentEnv();
+        jstring name = (*env)->NewStringUTF(env, i->name);
         assert(name);
-        jmethodID mid1 = (*pulse_thread_env)->GetMethodID(pulse_thread_env, cls,
-                "sink_callback", "(Ljava/lang/String;)V");
-        assert(mid1);
-        (*pulse_thread_env)->CallVoidMethod(pulse_thread_env,
-                java_context->obj, mid1, name) ;
-    } else {
-        assert(pulse_thread_env);
-        notifyWaitingOperations(pulse_thread_env);
+        (*env)->CallVoidMethod(env, java_context->obj, sink_callback_id, name) ;
+        (*env)->DeleteLocalRef(env, name);
     }
 
 }
@@ -73,30 +84,23 @@ void sink_list_success_cb(pa_context *context, const pa_sink_info *i, int eol,
 void source_list_success_cb(pa_context *context, const pa_source_info *i,
         int eol, void *userdata) {
 
+    java_context_t* java_context = userdata;
     if (eol == 0) {
-        jclass cls = (*pulse_thread_env)->GetObjectClass(pulse_thread_env,
-                java_context->obj);
-        assert(cls);
-        jstring name = (*pulse_thread_env)->NewStringUTF(pulse_thread_env, i->name);
+        JNIEnv* env = getCurrentEnv();
+        jstring name = (*env)->NewStringUTF(env, i->name);
         assert(name);
-        jmethodID mid1 = (*pulse_thread_env)->GetMethodID(pulse_thread_env, cls,
-                "source_callback", "(Ljava/lang/String;)V");
-        assert(mid1);
-        (*pulse_thread_env)->CallVoidMethod(pulse_thread_env,
-                java_context->obj, mid1, name) ;
-    } else {
-        assert(pulse_thread_env);
-        notifyWaitingOperations(pulse_thread_env);
+        (*env)->CallVoidMethod(env, java_context->obj, source_callback_id, name) ;
+        (*env)->DeleteLocalRef(env, name);
     }
 
 }
 
 static void context_change_callback(pa_context* context, void* userdata) {
     assert(context);
-    assert(userdata == NULL);
+    assert(userdata);
 
-    //java_context_t* java_context = (java_context_t*)userdata;
-    JNIEnv* env = java_context->env;
+    java_context_t* java_context = (java_context_t*)userdata;
+    JNIEnv* env = getCurrentEnv();
     jobject obj = java_context->obj;
 
     //    printf("context state changed to %d\n", pa_context_get_state(context));
@@ -104,11 +108,7 @@ static void context_change_callback(pa_context* context, void* userdata) {
     /* Call the EventLoop.update method in java
      * to handle all java-side events
      */
-    jclass cls = (*env)->GetObjectClass(env, obj);
-    assert(cls);
-    jmethodID mid = (*env)->GetMethodID(env, cls, "update", "(J)V");
-    assert(mid);
-    (*env)->CallVoidMethod(env, obj, mid, (jlong) pa_context_get_state(context));
+    (*env)->CallVoidMethod(env, obj, update_id, (jlong) pa_context_get_state(context));
     return;
 
 }
@@ -116,54 +116,100 @@ static void context_change_callback(pa_context* context, void* userdata) {
 static int poll_function(struct pollfd *ufds, unsigned long nfds, int timeout,
         void *userdata) {
 
-    JNIEnv* env = pulse_thread_env;
+    java_context_t* java_context = userdata;
+    JNIEnv* env = getCurrentEnv();
     assert(env);
-    jobject lockObject = getLockObject(env);
 
-    (*env)->MonitorExit(env, lockObject);
+    /* let other threads use the pulseaudio api while we wait */
+    (*env)->CallVoidMethod(env, java_context->obj, unlock_id);
 
     int value = poll(ufds, nfds, timeout);
 
-    (*env)->MonitorEnter(env, lockObject);
+    (*env)->CallVoidMethod(env, java_context->obj, lock_id);
     return value;
 }
 
+static void detach_loop_thread(void* value) {
+    JavaVM* vm = getJavaVM();
+    (*vm)->DetachCurrentThread(vm);
+}
+
+static void create_detach_key(void) {
+    pthread_key_create(&detach_key, detach_loop_thread);
+}
+
 /*
- * Class:     org_classpath_icedtea_pulseaudio_EventLoop
- * Method:    native_setup
- * Signature: (Ljava/lang/String;Ljava/lang/String;)V
+ * Runs on the pa_threaded_mainloop thread before any other event. Attaches
+ * the thread so that callbacks can call into java; the thread is detached
+ * again when it exits.
  */
-JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_EventLoop_native_1setup
-(JNIEnv* env, jobject obj, jstring appName, jstring server) {
+static void attach_loop_thread(pa_mainloop_api* api, void* userdata) {
+    JNIEnv* env = NULL;
+    JavaVMAttachArgs args;
+    args.version = JNI_VERSION_1_6;
+    args.name = "PulseAudio Mainloop Thread";
+    args.group = NULL;
+
+    JavaVM* vm = getJavaVM();
+    jint result = (*vm)->AttachCurrentThreadAsDaemon(vm, (void**) &env,
+            &args);
+    assert(result == JNI_OK);
+
+    pthread_once(&detach_key_once, create_detach_key);
+    pthread_setspecific(detach_key, env);
+
+    java_context_t* java_context = userdata;
+    (*env)->CallVoidMethod(env, java_context->obj, loop_thread_started_id);
+}
 
-    assert(appName != NULL);
+/*
+ * Class:     org_classpath_icedtea_pulseaudio_EventLoop
+ * Method:    init_ids
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_EventLoop_init_1ids
+(JNIEnv* env, jclass clz) {
+    mainloop_pointer_id = getJavaPointerFieldID(env, clz, "mainloopPointer");
+    context_pointer_id = getJavaPointerFieldID(env, clz, "contextPointer");
+    java_context_pointer_id = getJavaPointerFieldID(env, clz,
+            "javaContextPointer");
+
+    update_id = getJavaMethodID(env, clz, "update", "(J)V");
+    sink_callback_id = getJavaMethodID(env, clz, "sink_callback",
+            "(Ljava/lang/String;)V");
+    source_callback_id = getJavaMethodID(env, clz, "source_callback",
+            "(Ljava/lang/String;)V");
+    lock_id = getJavaMethodID(env, clz, "lock", "()V");
+    unlock_id = getJavaMethodID(env, clz, "unlock", "()V");
+    loop_thread_started_id = getJavaMethodID(env, clz, "loopThreadStarted",
+            "()V");
+}
 
-    //    printf("native_setup() called\n");
-    pa_mainloop *mainloop = pa_mainloop_new();
-    assert(mainloop != NULL);
-    pa_mainloop_api *mainloop_api = pa_mainloop_get_api(mainloop);
-    assert(mainloop != NULL);
+/*
+ * Create the context on the given mainloop and start connecting it. Returns
+ * NULL if that failed, in which case the caller still owns the mainloop.
+ */
+static pa_context* setup_context(JNIEnv* env, jobject obj, jstring appName,
+        jstring server, pa_mainloop_api* mainloop_api) {
 
     pa_context *context = NULL;
 
     const char* string_appName;
     string_appName = (*env)->GetStringUTFChars(env, appName, NULL);
     if (string_appName == NULL) {
-        return; /* a OutOfMemoryError thrown by vm */
+        return NULL; /* a OutOfMemoryError thrown by vm */
     }
     //    printf("using appName : %s\n", string_appName);
     context = pa_context_new(mainloop_api, string_appName);
-    assert(mainloop != NULL);
+    assert(context != NULL);
     (*env)->ReleaseStringUTFChars(env, appName, string_appName);
 
-    obj = (*env)->NewGlobalRef(env, obj);
-
-    java_context = malloc(sizeof(java_context_t));
+    java_context_t* java_context = malloc(sizeof(java_context_t));
     java_context->env = env;
-    pulse_thread_env = env;
-    java_context->obj = obj;
+    java_context->obj = (*env)->NewGlobalRef(env, obj);
 
-    pa_context_set_state_callback(context, context_change_callback, NULL);
+    pa_context_set_state_callback(context, context_change_callback,
+            java_context);
 
     if (server != NULL) {
         /* obtain the server from the caller */
@@ -173,27 +219,138 @@ JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_EventLoop_native_1s
             /* error, so clean up */
             (*env)->DeleteGlobalRef(env, java_context->obj);
             pa_context_disconnect(context);
-            pa_mainloop_free(mainloop);
+            pa_context_unref(context);
             free(java_context);
-            return; /* OutOfMemoryError */
+            return NULL; /* OutOfMemoryError */
         }
         //        printf("About to connect to server: %s\n", string_server);
         pa_context_connect(context, string_server, 0, NULL);
-        (*env)->ReleaseStringUTFChars(env, appName, string_server);
+        (*env)->ReleaseStringUTFChars(env, server, string_server);
     } else {
         //        printf("using default server\n");
         pa_context_connect(context, NULL, 0, NULL);
     }
 
+    setJavaPointer(env, obj, java_context_pointer_id, java_context);
+    return context;
+}
+
+/*
+ * Drop the reference to the java EventLoop that the callbacks use
+ */
+static void free_java_context(JNIEnv* env, jobject obj) {
+    java_context_t* java_context = getJavaPointer(env, obj,
+            java_context_pointer_id);
+    assert(java_context);
+    (*env)->DeleteGlobalRef(env, java_context->obj);
+    free(java_context);
+    setJavaPointer(env, obj, java_context_pointer_id, NULL);
+}
+
+/*
+ * Class:     org_classpath_icedtea_pulseaudio_EventLoop
+ * Method:    native_setup
+ * Signature: (Ljava/lang/String;Ljava/lang/String;)V
+ */
+JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_EventLoop_native_1setup
+(JNIEnv* env, jobject obj, jstring appName, jstring server) {
+
+    assert(appName != NULL);
+
+    //    printf("native_setup() called\n");
+    pa_mainloop *mainloop = pa_mainloop_new();
+    assert(mainloop != NULL);
+    pa_mainloop_api *mainloop_api = pa_mainloop_get_api(mainloop);
+    assert(mainloop_api != NULL);
+
+    setJavaPointer(env, obj, mainloop_pointer_id, mainloop);
+
+    pa_context* context = setup_context(env, obj, appName, server, mainloop_api);
+    if (context == NULL) {
+        setJavaPointer(env, obj, mainloop_pointer_id, NULL);
+        pa_mainloop_free(mainloop);
+        return;
+    }
+
     // set polling function
-    pa_mainloop_set_poll_func(mainloop, poll_function, NULL);
+    pa_mainloop_set_poll_func(mainloop, poll_function,
+            getJavaPointer(env, obj, java_context_pointer_id));
 
-    setJavaPointer(env, obj, "mainloopPointer", mainloop);
-    setJavaPointer(env, obj, "contextPointer", context);
+    setJavaPointer(env, obj, context_pointer_id, context);
     //    printf("native_setup() returning\n");
     return;
 
 }
+
+/*
+ * Class:     org_classpath_icedtea_pulseaudio_EventLoop
+ * Method:    native_setup_threaded
+ * Signature: (Ljava/lang/String;Ljava/lang/String;)V
+ */
+JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_EventLoop_native_1setup_1threaded
+(JNIEnv* env, jobject obj, jstring appName, jstring server) {
+
+    assert(appName != NULL);
+
+    pa_threaded_mainloop *mainloop = pa_threaded_mainloop_new();
+    assert(mainloop != NULL);
+    pa_mainloop_api *mainloop_api = pa_threaded_mainloop_get_api(mainloop);
+    assert(mainloop_api != NULL);
+
+    /* needed by EventLoop.lock() from here on */
+    setJavaPointer(env, obj, mainloop_pointer_id, mainloop);
+
+    /*
+     * The loop thread is not running yet, so the state callbacks caused by
+     * connecting still happen on this thread
+     */
+    pa_context* context = setup_context(env, obj, appName, server, mainloop_api);
+    if (context == NULL) {
+        setJavaPointer(env, obj, mainloop_pointer_id, NULL);
+        pa_threaded_mainloop_free(mainloop);
+        return;
+    }
+    setJavaPointer(env, obj, context_pointer_id, context);
+
+    /* a deferred event, so this runs before anything else on the new thread */
+    pa_mainloop_api_once(mainloop_api, attach_loop_thread,
+            getJavaPointer(env, obj, java_context_pointer_id));
+
+    if (pa_threaded_mainloop_start(mainloop) < 0) {
+        throwByName(env, ILLEGAL_STATE_EXCEPTION,
+                "unable to start the mainloop thread");
+    }
+}
+
+/*
+ * Class:     org_classpath_icedtea_pulseaudio_EventLoop
+ * Method:    native_lock
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_EventLoop_native_1lock
+(JNIEnv* env, jobject obj) {
+    pa_threaded_mainloop* mainloop = (pa_threaded_mainloop*) getJavaPointer(env,
+            obj, mainloop_pointer_id);
+    /* there is nothing to protect before setup or after shutdown */
+    if (mainloop != NULL) {
+        pa_threaded_mainloop_lock(mainloop);
+    }
+}
+
+/*
+ * Class:     org_classpath_icedtea_pulseaudio_EventLoop
+ * Method:    native_unlock
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_EventLoop_native_1unlock
+(JNIEnv* env, jobject obj) {
+    pa_threaded_mainloop* mainloop = (pa_threaded_mainloop*) getJavaPointer(env,
+            obj, mainloop_pointer_id);
+    if (mainloop != NULL) {
+        pa_threaded_mainloop_unlock(mainloop);
+    }
+}
+
 /*
  * Class:     org_classpath_icedtea_pulseaudio_EventLoop
  * Method:    native_iterate
@@ -202,7 +359,7 @@ JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_EventLoop_native_1s
 JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_EventLoop_native_1iterate
 (JNIEnv* env, jobject obj, jint timeout) {
 
-    pa_mainloop* mainloop = (pa_mainloop*) getJavaPointer(env, obj, "mainloopPointer");
+    pa_mainloop* mainloop = (pa_mainloop*) getJavaPointer(env, obj, mainloop_pointer_id);
     assert(mainloop);
 
     int returnval;
@@ -223,34 +380,51 @@ JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_EventLoop_native_1i
 
 }
 
+/*
+ * Class:     org_classpath_icedtea_pulseaudio_EventLoop
+ * Method:    native_wakeup
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_EventLoop_native_1wakeup
+(JNIEnv* env, jobject obj) {
+
+    /* the mainloop is gone once native_shutdown has run */
+    pa_mainloop* mainloop = (pa_mainloop*) getJavaPointer(env, obj, mainloop_pointer_id);
+    if (mainloop != NULL) {
+        pa_mainloop_wakeup(mainloop);
+    }
+}
+
 /*
  * Class:     org_classpath_icedtea_pulseaudio_EventLoop
  * Method:    nativeUpdateTargetPortNameList
- * Signature: ()[B
+ * Signature: ()J
  */
-JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_EventLoop_nativeUpdateTargetPortNameList
+JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_EventLoop_nativeUpdateTargetPortNameList
 (JNIEnv* env, jobject obj) {
 
-    pa_context* context = (pa_context*) getJavaPointer(env, obj, "contextPointer");
+    pa_context* context = (pa_context*) getJavaPointer(env, obj, context_pointer_id);
     assert(context);
-    pa_operation *o = pa_context_get_sink_info_list(context, sink_list_success_cb, NULL);
+    pa_operation *o = pa_context_get_sink_info_list(context, sink_list_success_cb,
+            getJavaPointer(env, obj, java_context_pointer_id));
     assert(o);
-    return convertNativePointerToJava(env, o);
+    return convertNativePointerToJava(o);
 }
 
 
 /*
  * Class:     org_classpath_icedtea_pulseaudio_EventLoop
  * Method:    nativeUpdateSourcePortNameList
- * Signature: ()[B
+ * Signature: ()J
  */
-JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_EventLoop_nativeUpdateSourcePortNameList
+JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_EventLoop_nativeUpdateSourcePortNameList
 (JNIEnv * env, jobject obj) {
-    pa_context* context = (pa_context*) getJavaPointer(env, obj, "contextPointer");
+    pa_context* context = (pa_context*) getJavaPointer(env, obj, context_pointer_id);
     assert(context);
-    pa_operation *o = pa_context_get_source_info_list(context, source_list_success_cb, NULL);
+    pa_operation *o = pa_context_get_source_info_list(context, source_list_success_cb,
+            getJavaPointer(env, obj, java_context_pointer_id));
     assert(o);
-    return convertNativePointerToJava(env, o);
+    return convertNativePointerToJava(o);
 }
 
 static void context_drain_complete_callback(pa_context* context, void* userdata) {
@@ -268,10 +442,10 @@ JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_EventLoop_native_1s
 
     //    printf("native_shutdown() starting\n");
 
-    pa_mainloop* mainloop = (pa_mainloop*) getJavaPointer(env, obj, "mainloopPointer");
+    pa_mainloop* mainloop = (pa_mainloop*) getJavaPointer(env, obj, mainloop_pointer_id);
     assert(mainloop != NULL);
 
-    pa_context* context = (pa_context*) getJavaPointer(env, obj, "contextPointer");
+    pa_context* context = (pa_context*) getJavaPointer(env, obj, context_pointer_id);
     assert(context != NULL);
 
     pa_operation* o = pa_context_drain(context, context_drain_complete_callback, NULL);
@@ -283,15 +457,44 @@ JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_EventLoop_native_1s
     }
 
     pa_context_unref(context);
-    (*env)->DeleteGlobalRef(env, java_context->obj);
-
-    free(java_context);
-    java_context = NULL;
+    free_java_context(env, obj);
 
-    setJavaPointer(env, obj, "mainloopPointer", NULL);
-    setJavaPointer(env, obj, "contextPointer", NULL);
+    setJavaPointer(env, obj, mainloop_pointer_id, NULL);
+    setJavaPointer(env, obj, context_pointer_id, NULL);
 
     //    printf("native_shutdown() returning\n");
 
 }
 
+/*
+ * Class:     org_classpath_icedtea_pulseaudio_EventLoop
+ * Method:    native_shutdown_threaded
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_EventLoop_native_1shutdown_1threaded
+(JNIEnv *env, jobject obj) {
+
+    pa_threaded_mainloop* mainloop = (pa_threaded_mainloop*) getJavaPointer(env,
+            obj, mainloop_pointer_id);
+    assert(mainloop != NULL);
+
+    pa_context* context = (pa_context*) getJavaPointer(env, obj, context_pointer_id);
+    assert(context != NULL);
+
+    /*
+     * Stop the loop thread first. After that nothing else runs pulseaudio
+     * code, and the callbacks caused by disconnecting happen on this thread
+     */
+    pa_threaded_mainloop_stop(mainloop);
+
+    pa_context_disconnect(context);
+    pa_context_unref(context);
+
+    free_java_context(env, obj);
+
+    setJavaPointer(env, obj, mainloop_pointer_id, NULL);
+    setJavaPointer(env, obj, context_pointer_id, NULL);
+
+    pa_threaded_mainloop_free(mainloop);
+}
+
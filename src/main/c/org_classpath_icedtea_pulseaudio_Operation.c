@@ -45,6 +45,40 @@
 #define SET_OP_ENUM(env, clz, name) \
     SET_JAVA_STATIC_LONG_FIELD_TO_PA_ENUM(env, clz, , OPERATION, name)
 
+static jfieldID operation_pointer_id = NULL;
+static jmethodID state_callback_id = NULL;
+
+/*
+ * Tells the java Operation, and so only the thread waiting for it, that the
+ * operation has finished. userdata is a global reference to the Operation,
+ * held until then.
+ */
+static void operation_state_callback(pa_operation* operation, void* userdata) {
+    JNIEnv* env = getCurrentEnv();
+    assert(env);
+    jobject obj = (jobject) userdata;
+    assert(obj);
+
+    if (pa_operation_get_state(operation) == PA_OPERATION_RUNNING) {
+        return;
+    }
+
+    pa_operation_set_state_callback(operation, NULL, NULL);
+    (*env)->CallVoidMethod(env, obj, state_callback_id);
+    (*env)->DeleteGlobalRef(env, obj);
+}
+
+/*
+ * Class:     org_classpath_icedtea_pulseaudio_Operation
+ * Method:    init_ids
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_Operation_init_1ids
+  (JNIEnv *env, jclass clz) {
+    operation_pointer_id = getJavaPointerFieldID(env, clz, "operationPointer");
+    state_callback_id = getJavaMethodID(env, clz, "stateCallback", "()V");
+}
+
 /*
  * Class:     org_classpath_icedtea_pulseaudio_Operation
  * Method:    init_constants
@@ -66,7 +100,7 @@ JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_Operation_init_1con
 JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_Operation_native_1ref
 (JNIEnv* env, jobject obj) {
 
-    pa_operation* operation = (pa_operation*) getJavaPointer(env, obj, "operationPointer");
+    pa_operation* operation = (pa_operation*) getJavaPointer(env, obj, operation_pointer_id);
     assert(operation);
     pa_operation_ref(operation);
 
@@ -80,7 +114,7 @@ JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_Operation_native_1r
 JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_Operation_native_1unref
 (JNIEnv* env, jobject obj) {
 
-    pa_operation* operation = (pa_operation*) getJavaPointer(env, obj, "operationPointer");
+    pa_operation* operation = (pa_operation*) getJavaPointer(env, obj, operation_pointer_id);
     assert(operation);
     pa_operation_unref(operation);
 }
@@ -93,8 +127,26 @@ JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_Operation_native_1u
 JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_Operation_native_1get_1state
 (JNIEnv *env, jobject obj) {
 
-    pa_operation* operation = (pa_operation*) getJavaPointer(env, obj, "operationPointer");
+    pa_operation* operation = (pa_operation*) getJavaPointer(env, obj, operation_pointer_id);
     assert(operation);
     jlong state = pa_operation_get_state(operation);
     return state;
 }
+
+/*
+ * Class:     org_classpath_icedtea_pulseaudio_Operation
+ * Method:    native_set_state_callback
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_Operation_native_1set_1state_1callback
+(JNIEnv* env, jobject obj) {
+
+    pa_operation* operation = (pa_operation*) getJavaPointer(env, obj, operation_pointer_id);
+    assert(operation);
+
+    jobject ref = (*env)->NewGlobalRef(env, obj);
+    if (ref == NULL) {
+        return; /* OutOfMemoryError */
+    }
+    pa_operation_set_state_callback(operation, operation_state_callback, ref);
+}
@@ -8,41 +8,45 @@ typedef struct java_context {
     jobject obj;
 } java_context;
 
-extern JNIEnv* pulse_thread_env;
+static jfieldID context_pointer_id = NULL;
+static jmethodID update_channels_and_volume_id = NULL;
 
 void source_callback(pa_context *context, int success, void *userdata) {
     assert(context);
-    assert(pulse_thread_env);
-    notifyWaitingOperations(pulse_thread_env);
 }
 
 void get_source_volume_callback(pa_context *context, const pa_source_info *i,
         int eol, void *userdata) {
     assert(context);
-    assert(pulse_thread_env);
     
     if (eol == 0) {
         // printf("%s\n", i->name);
         jobject obj = (jobject) userdata;
         assert(obj);
-        jclass cls = (*pulse_thread_env)->GetObjectClass(pulse_thread_env, obj);
-        assert(cls);
-        jmethodID mid1 = (*pulse_thread_env)->GetMethodID(pulse_thread_env, cls,
-                "update_channels_and_volume", "(IF)V");
-        assert(mid1);
-        (*pulse_thread_env)->CallVoidMethod(pulse_thread_env, obj, mid1,
+        JNIEnv* env = getCurrentEnv();
+        (*env)->CallVoidMethod(env, obj, update_channels_and_volume_id,
                 (int) (i->volume).channels, (float) (i->volume).values[0]) ;
-    } else {
-        notifyWaitingOperations(pulse_thread_env);
     }
 }
 
+/*
+ * Class:     org_classpath_icedtea_pulseaudio_PulseAudioSourcePort
+ * Method:    init_ids
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_PulseAudioSourcePort_init_1ids
+(JNIEnv *env, jclass clz) {
+    context_pointer_id = getJavaPointerFieldID(env, clz, "contextPointer");
+    update_channels_and_volume_id = getJavaMethodID(env, clz,
+            "update_channels_and_volume", "(IF)V");
+}
+
 /*
  * Class:     org_classpath_icedtea_pulseaudio_PulseAudioSourcePort
  * Method:    native_update_volume
- * Signature: ()[B
+ * Signature: ()J
  */
-JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_PulseAudioSourcePort_native_1update_1volume
+JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_PulseAudioSourcePort_native_1update_1volume
 (JNIEnv *env, jobject obj) {
     jclass cls = (*env)->GetObjectClass(env, obj);
     assert(cls);
@@ -52,23 +56,23 @@ JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_PulseAudioSou
     assert(jstr);
     const char *name = (*env)->GetStringUTFChars(env, jstr, NULL);
     if (name == NULL) {
-        return NULL;    // oome
+        return 0;    // oome
     }
     
-    pa_context* context = (pa_context*) getJavaPointer(env, obj, "contextPointer");
+    pa_context* context = (pa_context*) getJavaPointer(env, obj, context_pointer_id);
     assert(context);
     obj = (*env)->NewGlobalRef(env, obj);
     pa_operation *o = pa_context_get_source_info_by_name (context, (char*) name, get_source_volume_callback, obj);
     assert(o);
-    return convertNativePointerToJava(env, o);
+    return convertNativePointerToJava(o);
 }
 
 /*
  * Class:     org_classpath_icedtea_pulseaudio_PulseAudioSourcePort
  * Method:    native_set_volume
- * Signature: (F)[B
+ * Signature: (F)J
  */
-JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_PulseAudioSourcePort_native_1set_1volume
+JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_PulseAudioSourcePort_native_1set_1volume
 (JNIEnv *env, jobject obj, jfloat value) {
     jclass cls = (*env)->GetObjectClass(env, obj);
     assert(cls);
@@ -81,10 +85,10 @@ JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_PulseAudioSou
     
     const char *name = (*env)->GetStringUTFChars(env, jstr, NULL);
     if (name == NULL) {
-        return NULL;     // oome
+        return 0;     // oome
     }
     
-    pa_context* context = (pa_context*) getJavaPointer(env, obj, "contextPointer");
+    pa_context* context = (pa_context*) getJavaPointer(env, obj, context_pointer_id);
     assert(context);
     
     obj = (*env)->NewGlobalRef(env, obj);
@@ -97,6 +101,6 @@ JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_PulseAudioSou
     pa_operation *o = pa_context_set_source_volume_by_name (context, (char*) name,pa_cvolume_set(&cv, channels, value), source_callback, obj);
     assert(o);
     
-    return convertNativePointerToJava(env, o);
+    return convertNativePointerToJava(o);
 }
 
@@ -9,41 +9,46 @@ typedef struct java_context {
     jobject obj;
 } java_context;
 
-extern JNIEnv* pulse_thread_env;
+static jfieldID context_pointer_id = NULL;
+static jmethodID update_channels_and_volume_id = NULL;
 
 static void sink_callback(pa_context *context, int success, void *userdata) {
-    notifyWaitingOperations(pulse_thread_env);
 }
 
 static void get_sink_volume_callback(pa_context *context, const pa_sink_info *i,
         int eol, void *userdata) {
     assert(context);
-    assert(pulse_thread_env);
 
     if (eol == 0) {
         // printf("%s\n", i->name);
         jobject obj = (jobject) userdata;
         assert(obj);
-        jclass cls = (*pulse_thread_env)->GetObjectClass(pulse_thread_env, obj);
-        assert(cls);
-        jmethodID mid1 = (*pulse_thread_env)->GetMethodID(pulse_thread_env, cls,
-                "update_channels_and_volume", "(IF)V");
-        assert(mid1);
-        (*pulse_thread_env)->CallVoidMethod(pulse_thread_env, obj, mid1,
+        JNIEnv* env = getCurrentEnv();
+        (*env)->CallVoidMethod(env, obj, update_channels_and_volume_id,
                 (int) (i->volume).channels, (float) (i->volume).values[0]) ;
-    } else {
-        notifyWaitingOperations(pulse_thread_env);
     }
 
 }
 
 
+/*
+ * Class:     org_classpath_icedtea_pulseaudio_PulseAudioTargetPort
+ * Method:    init_ids
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_PulseAudioTargetPort_init_1ids
+(JNIEnv *env, jclass clz) {
+    context_pointer_id = getJavaPointerFieldID(env, clz, "contextPointer");
+    update_channels_and_volume_id = getJavaMethodID(env, clz,
+            "update_channels_and_volume", "(IF)V");
+}
+
 /*
  * Class:     org_classpath_icedtea_pulseaudio_PulseAudioTargetPort
  * Method:    native_update_volume
- * Signature: ()[B
+ * Signature: ()J
  */
-JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_PulseAudioTargetPort_native_1update_1volume
+JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_PulseAudioTargetPort_native_1update_1volume
 (JNIEnv *env, jobject obj) {
     jclass cls = (*env)->GetObjectClass(env, obj);
     assert(cls);
@@ -56,10 +61,10 @@ JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_PulseAudioTar
     
     const char *name = (*env)->GetStringUTFChars(env, jstr, NULL);
     if (name == NULL) {
-        return NULL;    // oome
+        return 0;    // oome
     }
     
-    pa_context* context = (pa_context*) getJavaPointer(env, obj, "contextPointer");
+    pa_context* context = (pa_context*) getJavaPointer(env, obj, context_pointer_id);
     assert(context);
     
     obj = (*env)->NewGlobalRef(env, obj);
@@ -67,15 +72,15 @@ JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_PulseAudioTar
     pa_operation *o = pa_context_get_sink_info_by_name (context, (char*) name, get_sink_volume_callback, obj);
     assert(o);
     
-    return convertNativePointerToJava(env, o);
+    return convertNativePointerToJava(o);
 }
 
 /*
  * Class:     org_classpath_icedtea_pulseaudio_PulseAudioTargetPort
  * Method:    native_set_volume
- * Signature: (F)[B
+ * Signature: (F)J
  */
-JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_PulseAudioTargetPort_native_1set_1volume
+JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_PulseAudioTargetPort_native_1set_1volume
 (JNIEnv *env, jobject obj, jfloat value) {
     jclass cls = (*env)->GetObjectClass(env, obj);
     assert(cls);
@@ -88,10 +93,10 @@ JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_PulseAudioTar
     
     const char *name = (*env)->GetStringUTFChars(env, jstr, NULL);
     if (name == NULL) {
-        return NULL;    // return oome
+        return 0;    // return oome
     }
     
-    pa_context* context = (pa_context*) getJavaPointer(env, obj, "contextPointer");
+    pa_context* context = (pa_context*) getJavaPointer(env, obj, context_pointer_id);
     assert(context);
     
     obj = (*env)->NewGlobalRef(env, obj);
@@ -103,5 +108,5 @@ JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_PulseAudioTar
     pa_operation *o = pa_context_set_sink_volume_by_name (context, (char*) name,pa_cvolume_set(&cv, channels, value), sink_callback, obj);
     assert(o);
     
-    return convertNativePointerToJava(env, o);
+    return convertNativePointerToJava(o);
 }
@@ -4,20 +4,47 @@
 #include <pulse/pulseaudio.h>
 #include <string.h>
 
-#define STREAM_POINTER "streamPointer"
-#define CONTEXT_POINTER "contextPointer"
 
 typedef struct java_context {
     JNIEnv* env;
     jobject obj;
+    /* bytes of the current fragment already copied out by read_fragment */
+    size_t fragment_offset;
+    /* memory handed out by pa_stream_begin_write, until it is committed */
+    void* write_buffer;
 } java_context;
 
-extern JNIEnv* pulse_thread_env;
+static jfieldID stream_pointer_id = NULL;
+static jfieldID context_pointer_id = NULL;
+
+/* callbacks into the java Stream object */
+static jmethodID state_callback_id = NULL;
+static jmethodID write_callback_id = NULL;
+static jmethodID read_callback_id = NULL;
+static jmethodID overflow_callback_id = NULL;
+static jmethodID underflow_callback_id = NULL;
+static jmethodID playback_started_callback_id = NULL;
+static jmethodID latency_update_callback_id = NULL;
+static jmethodID moved_callback_id = NULL;
+static jmethodID suspended_callback_id = NULL;
+static jmethodID buffer_attr_callback_id = NULL;
+
+/* StreamBufferAttributes, for converting pa_buffer_attr */
+static jclass buffer_attr_class = NULL;
+static jmethodID buffer_attr_constructor_id = NULL;
+static jmethodID get_max_length_id = NULL;
+static jmethodID get_target_length_id = NULL;
+static jmethodID get_pre_buffering_id = NULL;
+static jmethodID get_minimum_request_id = NULL;
+static jmethodID get_fragment_size_id = NULL;
+
+/* Stream.callbackMask, the callbacks java has listeners for */
+static jfieldID callback_mask_id = NULL;
+
+#define CALLBACK(name) org_classpath_icedtea_pulseaudio_Stream_CALLBACK_##name
 
 static void set_sink_input_volume_callback(pa_context* context, int success,
         void* userdata) {
-    notifyWaitingOperations(pulse_thread_env);
-
 }
 
 const char* getStringFromFormat(pa_sample_format_t format) {
@@ -70,6 +97,21 @@ pa_sample_format_t getFormatFromString(const char* encoding) {
     return format;
 }
 
+/*
+ * Call back into java, but only if a listener is registered for this kind of
+ * callback. Write and latency update callbacks come very often and most of
+ * the time nobody is listening.
+ */
+static void call_java_listeners(pa_stream* stream, java_context* context,
+        jint callback, jmethodID mid) {
+    JNIEnv* env = getCurrentEnv();
+
+    jint mask = (*env)->GetIntField(env, context->obj, callback_mask_id);
+    if ((mask & callback) != 0) {
+        callJavaVoidMethod(env, context->obj, mid);
+    }
+}
+
 static void stream_state_callback(pa_stream* stream, void *userdata) {
     //printf("stream_state_callback called\n");
 
@@ -79,11 +121,7 @@ static void stream_state_callback(pa_stream* stream, void *userdata) {
     assert(context->env);
     assert(context->obj);
 
-    if (pa_stream_get_state(stream) == PA_STREAM_CREATING) {
-        callJavaVoidMethod(context->env, context->obj, "stateCallback");
-    } else {
-        callJavaVoidMethod(pulse_thread_env, context->obj, "stateCallback");
-    }
+    callJavaVoidMethod(getCurrentEnv(), context->obj, state_callback_id);
 
 }
 
@@ -97,11 +135,7 @@ static void stream_write_callback(pa_stream *stream, size_t length,
     assert(context->env);
     assert(context->obj);
 
-    if (pa_stream_get_state(stream) == PA_STREAM_CREATING) {
-        callJavaVoidMethod(context->env, context->obj, "writeCallback");
-    } else {
-        callJavaVoidMethod(pulse_thread_env, context->obj, "writeCallback");
-    }
+    call_java_listeners(stream, context, CALLBACK(WRITE), write_callback_id);
 }
 
 static void stream_read_callback(pa_stream *stream, size_t length,
@@ -114,11 +148,7 @@ static void stream_read_callback(pa_stream *stream, size_t length,
     assert(context->env);
     assert(context->obj);
 
-    if (pa_stream_get_state(stream) == PA_STREAM_CREATING) {
-        callJavaVoidMethod(context->env, context->obj, "readCallback");
-    } else {
-        callJavaVoidMethod(pulse_thread_env, context->obj, "readCallback");
-    }
+    call_java_listeners(stream, context, CALLBACK(READ), read_callback_id);
 
 }
 
@@ -131,11 +161,7 @@ static void stream_overflow_callback(pa_stream *stream, void *userdata) {
     assert(context->env);
     assert(context->obj);
 
-    if (pa_stream_get_state(stream) == PA_STREAM_CREATING) {
-        callJavaVoidMethod(context->env, context->obj, "overflowCallback");
-    } else {
-        callJavaVoidMethod(pulse_thread_env, context->obj, "overflowCallback");
-    }
+    call_java_listeners(stream, context, CALLBACK(OVERFLOW), overflow_callback_id);
 }
 
 static void stream_underflow_callback(pa_stream *stream, void *userdata) {
@@ -147,22 +173,16 @@ static void stream_underflow_callback(pa_stream *stream, void *userdata) {
     assert(context->env);
     assert(context->obj);
 
-    if (pa_stream_get_state(stream) == PA_STREAM_CREATING) {
-        callJavaVoidMethod(context->env, context->obj, "underflowCallback");
-    } else {
-        callJavaVoidMethod(pulse_thread_env, context->obj, "underflowCallback");
-    }
+    call_java_listeners(stream, context, CALLBACK(UNDERFLOW), underflow_callback_id);
 }
 
 
 static void update_timing_info_callback(pa_stream* stream, int success, void* userdata) {
 
     assert(stream);
-    JNIEnv* env = pulse_thread_env;
+    JNIEnv* env = getCurrentEnv();
     assert(env);
 
-    notifyWaitingOperations(env);
-
     if (success == 0) {
         throwByName(env, ILLEGAL_STATE_EXCEPTION, "drain failed");
     }
@@ -178,13 +198,7 @@ static void stream_started_callback(pa_stream *stream, void *userdata) {
     assert(context->env);
     assert(context->obj);
 
-    if (pa_stream_get_state(stream) == PA_STREAM_CREATING) {
-        callJavaVoidMethod(context->env, context->obj,
-                "playbackStartedCallback");
-    } else {
-        callJavaVoidMethod(pulse_thread_env, context->obj,
-                "playbackStartedCallback");
-    }
+    call_java_listeners(stream, context, CALLBACK(PLAYBACK_STARTED), playback_started_callback_id);
 
 }
 
@@ -197,12 +211,7 @@ static void stream_latency_update_callback(pa_stream *stream, void *userdata) {
     assert(context->env);
     assert(context->obj);
 
-    if (pa_stream_get_state(stream) == PA_STREAM_CREATING) {
-        callJavaVoidMethod(context->env, context->obj, "latencyUpdateCallback");
-    } else {
-        callJavaVoidMethod(pulse_thread_env, context->obj,
-                "latencyUpdateCallback");
-    }
+    call_java_listeners(stream, context, CALLBACK(LATENCY_UPDATE), latency_update_callback_id);
 }
 
 static void stream_moved_callback(pa_stream *stream, void *userdata) {
@@ -214,11 +223,7 @@ static void stream_moved_callback(pa_stream *stream, void *userdata) {
     assert(context->env);
     assert(context->obj);
 
-    if (pa_stream_get_state(stream) == PA_STREAM_CREATING) {
-        callJavaVoidMethod(context->env, context->obj, "movedCallback");
-    } else {
-        callJavaVoidMethod(pulse_thread_env, context->obj, "movedCallback");
-    }
+    call_java_listeners(stream, context, CALLBACK(MOVED), moved_callback_id);
 
 }
 
@@ -231,11 +236,7 @@ static void stream_suspended_callback(pa_stream *stream, void *userdata) {
     assert(context->env);
     assert(context->obj);
 
-    if (pa_stream_get_state(stream) == PA_STREAM_CREATING) {
-        callJavaVoidMethod(context->env, context->obj, "suspendedCallback");
-    } else {
-        callJavaVoidMethod(pulse_thread_env, context->obj, "suspendedCallback");
-    }
+    call_java_listeners(stream, context, CALLBACK(SUSPENDED), suspended_callback_id);
 
 }
 
@@ -246,11 +247,7 @@ static void buf_attr_changed_callback(pa_stream *stream, void *userdata) {
     assert(context->env);
     assert(context->obj);
 
-    if (pa_stream_get_state(stream) == PA_STREAM_CREATING) {
-        callJavaVoidMethod(context->env, context->obj, "bufferAttrCallback");
-    } else {
-        callJavaVoidMethod(pulse_thread_env, context->obj, "bufferAttrCallback");
-    }
+    callJavaVoidMethod(getCurrentEnv(), context->obj, buffer_attr_callback_id);
 }
 
 // used to set stream flags and states.
@@ -297,13 +294,49 @@ JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_init_1consta
     SET_STREAM_ENUM(env, clz, FLAG, FAIL_ON_SUSPEND);
 }
 
+/*
+ * Class:     org_classpath_icedtea_pulseaudio_Stream
+ * Method:    init_ids
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_init_1ids
+  (JNIEnv *env, jclass clz) {
+    stream_pointer_id = getJavaPointerFieldID(env, clz, "streamPointer");
+    context_pointer_id = getJavaPointerFieldID(env, clz, "contextPointer");
+    callback_mask_id = (*env)->GetFieldID(env, clz, "callbackMask", "I");
+    assert(callback_mask_id);
+
+    state_callback_id = getJavaMethodID(env, clz, "stateCallback", "()V");
+    write_callback_id = getJavaMethodID(env, clz, "writeCallback", "()V");
+    read_callback_id = getJavaMethodID(env, clz, "readCallback", "()V");
+    overflow_callback_id = getJavaMethodID(env, clz, "overflowCallback", "()V");
+    underflow_callback_id = getJavaMethodID(env, clz, "underflowCallback", "()V");
+    playback_started_callback_id = getJavaMethodID(env, clz, "playbackStartedCallback", "()V");
+    latency_update_callback_id = getJavaMethodID(env, clz, "latencyUpdateCallback", "()V");
+    moved_callback_id = getJavaMethodID(env, clz, "movedCallback", "()V");
+    suspended_callback_id = getJavaMethodID(env, clz, "suspendedCallback", "()V");
+    buffer_attr_callback_id = getJavaMethodID(env, clz, "bufferAttrCallback", "()V");
+
+    jclass cls = (*env)->FindClass(env,
+            "org/classpath/icedtea/pulseaudio/StreamBufferAttributes");
+    assert(cls);
+    buffer_attr_class = (*env)->NewGlobalRef(env, cls);
+    buffer_attr_constructor_id = getJavaMethodID(env, cls, "<init>", "(IIIII)V");
+    get_max_length_id = getJavaMethodID(env, cls, "getMaxLength", "()I");
+    get_target_length_id = getJavaMethodID(env, cls, "getTargetLength", "()I");
+    get_pre_buffering_id = getJavaMethodID(env, cls, "getPreBuffering", "()I");
+    get_minimum_request_id = getJavaMethodID(env, cls, "getMinimumRequest", "()I");
+    get_fragment_size_id = getJavaMethodID(env, cls, "getFragmentSize", "()I");
+    (*env)->DeleteLocalRef(env, cls);
+}
+
 /*
  * Class:     org_classpath_icedtea_pulseaudio_Stream
  * Method:    native_pa_stream_new
- * Signature: ([BLjava/lang/String;Ljava/lang/String;II)V
+ * Signature: (JLjava/lang/String;Ljava/lang/String;II)V
  */
 JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1new
-(JNIEnv* env, jobject obj, jbyteArray contextPointer, jstring nameString,
+(JNIEnv* env, jobject obj, jlong contextPointer, jstring nameString,
         jstring encodingString, jint sampleRate, jint channels) {
 
     //    printf("creating a new PulseAudio stream\n");
@@ -312,10 +345,12 @@ JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1
     assert(j_context);
     j_context->env = env;
     j_context->obj = (*env)->NewGlobalRef(env, obj);
+    j_context->fragment_offset = 0;
+    j_context->write_buffer = NULL;
 
-    setJavaPointer(env, obj, CONTEXT_POINTER, j_context);
+    setJavaPointer(env, obj, context_pointer_id, j_context);
 
-    pa_context* context = convertJavaPointerToNative(env, contextPointer);
+    pa_context* context = convertJavaPointerToNative(contextPointer);
     assert(context);
 
     const char* name = NULL;
@@ -354,7 +389,7 @@ JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1
         (*env)->ReleaseStringUTFChars(env, nameString,name);
     }
 
-    setJavaPointer(env, obj, STREAM_POINTER, stream);
+    setJavaPointer(env, obj, stream_pointer_id, stream);
 
     /*
      *
@@ -383,16 +418,16 @@ JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1
 JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1unref
 (JNIEnv* env, jobject obj) {
 
-    java_context* j_context = getJavaPointer(env, obj, CONTEXT_POINTER);
+    java_context* j_context = getJavaPointer(env, obj, context_pointer_id);
     assert(j_context);
     (*env)->DeleteGlobalRef(env, j_context->obj);
     free(j_context);
-    setJavaPointer(env, obj, CONTEXT_POINTER, NULL);
+    setJavaPointer(env, obj, context_pointer_id, NULL);
 
-    pa_stream* stream = getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
     pa_stream_unref(stream);
-    setJavaPointer(env, obj, STREAM_POINTER, NULL);
+    setJavaPointer(env, obj, stream_pointer_id, NULL);
 }
 
 /*
@@ -402,7 +437,7 @@ JNIEXPORT void JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1
  */
 JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1get_1state
 (JNIEnv* env, jobject obj) {
-    pa_stream* stream = (pa_stream*) getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*) getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
     return pa_stream_get_state(stream);
 }
@@ -410,16 +445,16 @@ JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_
 /*
  * Class:     org_classpath_icedtea_pulseaudio_Stream
  * Method:    native_pa_stream_get_context
- * Signature: ()[B
+ * Signature: ()J
  */
-JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1get_1context
+JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1get_1context
 (JNIEnv* env, jobject obj) {
 
-    pa_stream* stream = (pa_stream*) getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*) getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
     pa_context* context = pa_stream_get_context(stream);
     assert(context);
-    return convertNativePointerToJava(env, context);
+    return convertNativePointerToJava(context);
 }
 
 /*
@@ -429,7 +464,7 @@ JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native
  */
 JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1get_1index
 (JNIEnv* env, jobject obj) {
-    pa_stream* stream = (pa_stream*) getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*) getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
     return pa_stream_get_index(stream);
 }
@@ -441,7 +476,7 @@ JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1
  */
 JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1get_1device_1index
 (JNIEnv* env, jobject obj) {
-    pa_stream* stream = (pa_stream*) getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*) getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
     return pa_stream_get_device_index(stream);
 }
@@ -453,7 +488,7 @@ JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1
  */
 JNIEXPORT jstring JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1get_1device_1name
 (JNIEnv* env, jobject obj) {
-    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
     const char* name = pa_stream_get_device_name(stream);
     assert(name);
@@ -467,7 +502,7 @@ JNIEXPORT jstring JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1p
  */
 JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1is_1suspended
 (JNIEnv* env, jobject obj) {
-    pa_stream* stream = (pa_stream*) getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*) getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
     return pa_stream_is_suspended(stream);
 }
@@ -475,22 +510,22 @@ JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1
 /*
  * Class:     org_classpath_icedtea_pulseaudio_Stream
  * Method:    native_pa_stream_connect_playback
- * Signature: (Ljava/lang/String;IIIIII[B[B)I
+ * Signature: (Ljava/lang/String;IIIIIJJJ)I
  */
 JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1connect_1playback
 (JNIEnv* env, jobject obj, jstring device, jint bufferMaxLength,
         jint bufferTargetLength, jint bufferPreBuffering,
         jint bufferMinimumRequest, jint bufferFragmentSize, jlong flags,
-        jbyteArray volumePointer, jbyteArray sync_streamPointer) {
+        jlong volumePointer, jlong sync_streamPointer) {
     pa_stream *sync_stream;
-    if(sync_streamPointer != NULL) {
-        sync_stream = convertJavaPointerToNative(env, sync_streamPointer);
+    if(sync_streamPointer != 0) {
+        sync_stream = convertJavaPointerToNative(sync_streamPointer);
         printf("Master stream is %p\n", sync_stream);
     } else {
         sync_stream = NULL;
     }
 
-    pa_stream* stream = (pa_stream*) getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*) getJavaPointer(env, obj, stream_pointer_id);
 
     pa_buffer_attr buffer_attr;
 
@@ -522,15 +557,15 @@ JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1
 /*
  * Class:     org_classpath_icedtea_pulseaudio_Stream
  * Method:    native_pa_stream_connect_record
- * Signature: (Ljava/lang/String;IIIIII[B[B)I
+ * Signature: (Ljava/lang/String;IIIIIJJJ)I
  */
 JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1connect_1record
 (JNIEnv* env, jobject obj, jstring device, jint bufferMaxLength,
         jint bufferTargetLength, jint bufferPreBuffereing,
         jint bufferMinimumRequest, jint bufferFragmentSize, jlong flags,
-        jbyteArray volumePointer, jbyteArray sync_streamPointer) {
+        jlong volumePointer, jlong sync_streamPointer) {
 
-    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
 
     pa_buffer_attr buffer_attr;
@@ -564,75 +599,226 @@ JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1
  */
 JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1disconnect
 (JNIEnv* env, jobject obj) {
-    pa_stream* stream = (pa_stream*) getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*) getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
     int return_value = pa_stream_disconnect(stream);
 
     return return_value;
 }
 
+/*
+ * Returns how many bytes of a data_length byte write fit in the stream right
+ * now, rounded down to whole frames, or -1 on error
+ */
+static jint get_available_length(pa_stream* stream, jint data_length,
+        jint frame_size) {
+    size_t writable = pa_stream_writable_size(stream);
+    if (writable == (size_t) -1) {
+        return -1;
+    }
+    size_t length = writable < (size_t) data_length ? writable : (size_t) data_length;
+    return length - (length % frame_size);
+}
+
 /*
  * Class:     org_classpath_icedtea_pulseaudio_Stream
- * Method:    native_pa_stream_write
- * Signature: ([BI)I
+ * Method:    native_pa_stream_write_available_direct
+ * Signature: (Ljava/nio/ByteBuffer;III)I
  */
-JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1write
-(JNIEnv* env, jobject obj, jbyteArray data, jint offset, jint data_length) {
-    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, STREAM_POINTER);
+JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1write_1available_1direct
+(JNIEnv* env, jobject obj, jobject data, jint offset, jint data_length,
+        jint frame_size) {
+    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
-    jbyte* data_buffer = (*env)->GetByteArrayElements(env, data, NULL);
+
+    jbyte* data_buffer = (*env)->GetDirectBufferAddress(env, data);
     if (data_buffer == NULL) {
-        return -1; // oome thrown
+        throwByName(env, ILLEGAL_ARGUMENT_EXCEPTION, "buffer is not direct");
+        return -1;
     }
-    jbyte* buffer_start = data_buffer + offset;
-    int value = pa_stream_write(stream, buffer_start, data_length, NULL, 0, PA_SEEK_RELATIVE);
-    (*env)->ReleaseByteArrayElements(env, data, data_buffer, 0);
-    return value;
+
+    jint length = get_available_length(stream, data_length, frame_size);
+    if (length <= 0) {
+        return length;
+    }
+
+    if (pa_stream_write(stream, data_buffer + offset, length, NULL, 0,
+            PA_SEEK_RELATIVE) < 0) {
+        return -1;
+    }
+    return length;
 }
 
 /*
  * Class:     org_classpath_icedtea_pulseaudio_Stream
- * Method:    native_pa_stream_peek
- * Signature: ()[B
+ * Method:    native_pa_stream_begin_write
+ * Signature: (II)Ljava/nio/ByteBuffer;
  */
-JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1peek
-(JNIEnv* env, jobject obj) {
+JNIEXPORT jobject JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1begin_1write
+(JNIEnv* env, jobject obj, jint data_length, jint frame_size) {
+    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, stream_pointer_id);
+    assert(stream);
+    java_context* j_context = getJavaPointer(env, obj, context_pointer_id);
+    assert(j_context);
+    assert(j_context->write_buffer == NULL);
+
+    jint length = get_available_length(stream, data_length, frame_size);
+    if (length < 0) {
+        throwByName(env, ILLEGAL_STATE_EXCEPTION, "unable to get writable size");
+        return NULL;
+    }
+    if (length == 0) {
+        return NULL;
+    }
 
-    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, STREAM_POINTER);
+    void* data;
+    size_t nbytes = length;
+    if (pa_stream_begin_write(stream, &data, &nbytes) < 0) {
+        throwByName(env, ILLEGAL_STATE_EXCEPTION, "pa_stream_begin_write failed");
+        return NULL;
+    }
+
+    /* libpulse may hand out less than we asked for; keep it to whole frames */
+    nbytes -= nbytes % frame_size;
+    if (nbytes == 0) {
+        pa_stream_cancel_write(stream);
+        return NULL;
+    }
+
+    jobject buffer = (*env)->NewDirectByteBuffer(env, data, nbytes);
+    if (buffer == NULL) {
+        pa_stream_cancel_write(stream);
+        return NULL; // oome thrown
+    }
+
+    j_context->write_buffer = data;
+    return buffer;
+}
+
+/*
+ * Class:     org_classpath_icedtea_pulseaudio_Stream
+ * Method:    native_pa_stream_commit_write
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1commit_1write
+(JNIEnv* env, jobject obj, jint data_length) {
+    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, stream_pointer_id);
+    assert(stream);
+    java_context* j_context = getJavaPointer(env, obj, context_pointer_id);
+    assert(j_context);
+    assert(j_context->write_buffer);
+
+    void* data = j_context->write_buffer;
+    j_context->write_buffer = NULL;
+
+    /* data is the memory from pa_stream_begin_write, so libpulse does not copy it */
+    return pa_stream_write(stream, data, data_length, NULL, 0, PA_SEEK_RELATIVE);
+}
+
+/*
+ * Class:     org_classpath_icedtea_pulseaudio_Stream
+ * Method:    native_pa_stream_cancel_write
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1cancel_1write
+(JNIEnv* env, jobject obj) {
+    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
+    java_context* j_context = getJavaPointer(env, obj, context_pointer_id);
+    assert(j_context);
+
+    j_context->write_buffer = NULL;
+    return pa_stream_cancel_write(stream);
+}
+
+/*
+ * Copies up to data_length bytes of recorded data from the current fragment
+ * into array at offset or, if array is NULL, into the memory at
+ * buffer + offset. Returns the number of bytes copied, 0 if there is no data
+ * yet, or -1 on error.
+ *
+ * The fragment is only dropped once all of it has been consumed; until then
+ * pa_stream_peek keeps returning it and we continue from fragment_offset
+ */
+static jint read_fragment(JNIEnv* env, pa_stream* stream,
+        java_context* j_context, jbyteArray array, jbyte* buffer, jint offset,
+        jint data_length) {
+
     const void* startLocation;
     size_t count;
 
     if ( pa_stream_peek(stream, &startLocation, &count) < 0 ) {
-        return NULL;
+        return -1;
     }
 
     /* no data available */
+    if (count == 0) {
+        return 0;
+    }
+
+    /* a hole in the stream; there is nothing to copy, so just skip it */
     if (startLocation == NULL) {
-        return NULL;
+        j_context->fragment_offset = 0;
+        pa_stream_drop(stream);
+        return 0;
     }
 
-    jsize length = count;
-    jbyteArray data = (*env)->NewByteArray(env, length);
+    size_t available = count - j_context->fragment_offset;
+    size_t bytes_read = ((size_t) data_length < available) ? (size_t) data_length : available;
+    const jbyte* source = (const jbyte*) startLocation + j_context->fragment_offset;
 
-    if ( data == NULL) {
-        return NULL; // oome thrown
+    if (array != NULL) {
+        /* only the slice being filled is touched */
+        (*env)->SetByteArrayRegion(env, array, offset, bytes_read, source);
+    } else {
+        memcpy(buffer + offset, source, bytes_read);
     }
 
-    (*env)->SetByteArrayRegion(env, data, 0, count, startLocation);
-    return data;
+    j_context->fragment_offset += bytes_read;
+    if (j_context->fragment_offset == count) {
+        j_context->fragment_offset = 0;
+        pa_stream_drop(stream);
+    }
+
+    return bytes_read;
 }
 
 /*
  * Class:     org_classpath_icedtea_pulseaudio_Stream
- * Method:    native_pa_stream_drop
- * Signature: ()I
+ * Method:    native_pa_stream_read
+ * Signature: ([BII)I
  */
-JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1drop
-(JNIEnv* env, jobject obj) {
-    pa_stream* stream = (pa_stream*) getJavaPointer(env, obj, STREAM_POINTER);
+JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1read
+(JNIEnv* env, jobject obj, jbyteArray data, jint offset, jint data_length) {
+
+    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
-    return pa_stream_drop(stream);
+    java_context* j_context = getJavaPointer(env, obj, context_pointer_id);
+    assert(j_context);
+
+    return read_fragment(env, stream, j_context, data, NULL, offset, data_length);
+}
+
+/*
+ * Class:     org_classpath_icedtea_pulseaudio_Stream
+ * Method:    native_pa_stream_read_direct
+ * Signature: (Ljava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1read_1direct
+(JNIEnv* env, jobject obj, jobject data, jint offset, jint data_length) {
+
+    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, stream_pointer_id);
+    assert(stream);
+    java_context* j_context = getJavaPointer(env, obj, context_pointer_id);
+    assert(j_context);
+
+    jbyte* data_buffer = (*env)->GetDirectBufferAddress(env, data);
+    if (data_buffer == NULL) {
+        throwByName(env, ILLEGAL_ARGUMENT_EXCEPTION, "buffer is not direct");
+        return -1;
+    }
+
+    return read_fragment(env, stream, j_context, NULL, data_buffer, offset, data_length);
 }
 
 /*
@@ -642,13 +828,13 @@ JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1
  */
 JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1writable_1size
 (JNIEnv* env, jobject obj) {
-    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, STREAM_POINTER);
-    if(!stream) {
-        return 0;
-    }
+    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, stream_pointer_id);
+    assert(stream);
     size_t size = pa_stream_writable_size(stream);
+    if (size == (size_t) -1) {
+        return -1;
+    }
     return size;
-
 }
 
 /*
@@ -658,7 +844,7 @@ JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1
  */
 JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1readable_1size
 (JNIEnv* env, jobject obj) {
-    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
     return pa_stream_readable_size(stream);
 }
@@ -666,11 +852,9 @@ JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1
 static void drain_callback(pa_stream* stream, int success, void* userdata) {
 
     assert(stream);
-    JNIEnv* env = pulse_thread_env;
+    JNIEnv* env = getCurrentEnv();
     assert(env);
 
-    notifyWaitingOperations(env);
-
     if (success == 0) {
         throwByName(env, ILLEGAL_STATE_EXCEPTION, "drain failed");
     }
@@ -680,15 +864,15 @@ static void drain_callback(pa_stream* stream, int success, void* userdata) {
 /*
  * Class:     org_classpath_icedtea_pulseaudio_Stream
  * Method:    native_pa_stream_drain
- * Signature: ()[B
+ * Signature: ()J
  */
-JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1drain
+JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1drain
 (JNIEnv* env, jobject obj) {
-    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
     pa_operation* operation = pa_stream_drain(stream, drain_callback, NULL);
     assert(operation);
-    return convertNativePointerToJava(env, operation);
+    return convertNativePointerToJava(operation);
 }
 
 /*
@@ -698,7 +882,7 @@ JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native
  */
 JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1is_1corked
 (JNIEnv* env, jobject obj) {
-    pa_stream* stream = (pa_stream*) getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*) getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
     return pa_stream_is_corked(stream);
 }
@@ -706,9 +890,8 @@ JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1
 static void cork_callback(pa_stream* stream, int success, void* userdata) {
 
     assert(stream);
-    JNIEnv* env = pulse_thread_env;
+    JNIEnv* env = getCurrentEnv();
     assert(env);
-    notifyWaitingOperations(env);
 
     if (success == 0) {
         throwByName(env, ILLEGAL_STATE_EXCEPTION, "cork failed");
@@ -719,22 +902,21 @@ static void cork_callback(pa_stream* stream, int success, void* userdata) {
 /*
  * Class:     org_classpath_icedtea_pulseaudio_Stream
  * Method:    native_pa_stream_cork
- * Signature: (I)[B
+ * Signature: (I)J
  */
-JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1cork
+JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1cork
 (JNIEnv* env, jobject obj, jint yes) {
-    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
     pa_operation* operation = pa_stream_cork(stream, yes, cork_callback, NULL);
     assert(operation);
-    return convertNativePointerToJava(env, operation);
+    return convertNativePointerToJava(operation);
 }
 
 static void flush_callback(pa_stream* stream, int success, void* userdata) {
     assert(stream);
-    JNIEnv* env = pulse_thread_env;
+    JNIEnv* env = getCurrentEnv();
     assert(env);
-    notifyWaitingOperations(env);
 
     if (success == 0) {
         throwByName(env, ILLEGAL_STATE_EXCEPTION, "flush failed");
@@ -745,22 +927,28 @@ static void flush_callback(pa_stream* stream, int success, void* userdata) {
 /*
  * Class:     org_classpath_icedtea_pulseaudio_Stream
  * Method:    native_pa_stream_flush
- * Signature: ()[B
+ * Signature: ()J
  */
-JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1flush
+JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1flush
 (JNIEnv* env, jobject obj) {
-    pa_stream* stream = (pa_stream*) getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*) getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
+    java_context* j_context = getJavaPointer(env, obj, context_pointer_id);
+    assert(j_context);
+    /* throw away the rest of a partially read fragment too */
+    if (j_context->fragment_offset > 0) {
+        j_context->fragment_offset = 0;
+        pa_stream_drop(stream);
+    }
     pa_operation* operation = pa_stream_flush(stream, flush_callback, NULL);
     assert(operation);
-    return convertNativePointerToJava(env, operation);
+    return convertNativePointerToJava(operation);
 }
 
 static void trigger_callback(pa_stream* stream, int success, void* userdata) {
     assert(stream);
-    JNIEnv* env = pulse_thread_env;
+    JNIEnv* env = getCurrentEnv();
     assert(env);
-    notifyWaitingOperations(env);
 
     if (success == 0) {
         throwByName(env, ILLEGAL_STATE_EXCEPTION, "trigger failed");
@@ -771,21 +959,20 @@ static void trigger_callback(pa_stream* stream, int success, void* userdata) {
 /*
  * Class:     org_classpath_icedtea_pulseaudio_Stream
  * Method:    native_pa_stream_trigger
- * Signature: ()[B
+ * Signature: ()J
  */
-JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1trigger
+JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1trigger
 (JNIEnv* env, jobject obj) {
-    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
     pa_operation* operation = pa_stream_trigger(stream, trigger_callback, NULL);
     assert(operation);
-    return convertNativePointerToJava(env, operation);
+    return convertNativePointerToJava(operation);
 }
 
 static void set_name_callback(pa_stream* stream, int success, void* userdata) {
     assert(stream);
-    JNIEnv* env = pulse_thread_env;
-    notifyWaitingOperations(env);
+    JNIEnv* env = getCurrentEnv();
 
     if (success == 0) {
         throwByName(env, ILLEGAL_STATE_EXCEPTION, "set_name failed");
@@ -795,11 +982,11 @@ static void set_name_callback(pa_stream* stream, int success, void* userdata) {
 /*
  * Class:     org_classpath_icedtea_pulseaudio_Stream
  * Method:    native_pa_stream_set_name
- * Signature: (Ljava/lang/String;)[B
+ * Signature: (Ljava/lang/String;)J
  */
-JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1set_1name
+JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1set_1name
 (JNIEnv* env, jobject obj, jstring newName) {
-    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
 
     const char* name;
@@ -812,7 +999,7 @@ JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native
     assert(operation);
     (*env)->ReleaseStringUTFChars(env, newName, name);
 
-    return convertNativePointerToJava(env, operation);
+    return convertNativePointerToJava(operation);
 }
 
 /*
@@ -822,12 +1009,14 @@ JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native
  */
 JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1get_1time
 (JNIEnv* env, jobject obj) {
-    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
 
     pa_usec_t time = 0;
-    int result = pa_stream_get_time (stream,&time);
-    assert(result == 0);
+    if (pa_stream_get_time(stream, &time) < 0) {
+        /* no timing info from the server yet */
+        return -1;
+    }
 
     return time;
 
@@ -840,7 +1029,7 @@ JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_
  */
 JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1get_1latency
 (JNIEnv* env, jobject obj) {
-    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
     pa_usec_t returnValue = 0;
     int negative = 0;
@@ -850,6 +1039,47 @@ JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_
     return returnValue;
 }
 
+#define TIMING(name) org_classpath_icedtea_pulseaudio_Stream_TIMING_##name
+
+/*
+ * Class:     org_classpath_icedtea_pulseaudio_Stream
+ * Method:    native_pa_stream_get_timing_info
+ * Signature: ([J)Z
+ */
+JNIEXPORT jboolean JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1get_1timing_1info
+(JNIEnv* env, jobject obj, jlongArray timing) {
+    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, stream_pointer_id);
+    assert(stream);
+
+    /* all of these come from the same, already received, timing info */
+    const pa_timing_info* info = pa_stream_get_timing_info(stream);
+    if (info == NULL) {
+        return JNI_FALSE;
+    }
+
+    pa_usec_t time = 0;
+    if (pa_stream_get_time(stream, &time) < 0) {
+        return JNI_FALSE;
+    }
+
+    pa_usec_t latency = 0;
+    int negative = 0;
+    if (pa_stream_get_latency(stream, &latency, &negative) < 0) {
+        return JNI_FALSE;
+    }
+
+    jlong values[TIMING(INFO_SIZE)];
+    values[TIMING(TIME)] = time;
+    values[TIMING(LATENCY)] = negative ? -(jlong) latency : (jlong) latency;
+    values[TIMING(READ_INDEX)] = info->read_index;
+    values[TIMING(WRITE_INDEX)] = info->write_index;
+    values[TIMING(PLAYING)] = info->playing;
+    values[TIMING(TIMESTAMP)] = pa_timeval_load(&info->timestamp);
+
+    (*env)->SetLongArrayRegion(env, timing, 0, TIMING(INFO_SIZE), values);
+    return JNI_TRUE;
+}
+
 /*
  * Class:     org_classpath_icedtea_pulseaudio_Stream
  * Method:    native_pa_stream_get_sample_spec
@@ -857,7 +1087,7 @@ JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_
  */
 JNIEXPORT jobject JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1get_1sample_1spec
 (JNIEnv* env, jobject obj) {
-    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
 
     const pa_sample_spec* sample_spec = pa_stream_get_sample_spec(stream);
@@ -893,23 +1123,19 @@ JNIEXPORT jobject JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1p
 
     //    printf("in native_pa_stream_get_buffer_attributes");
 
-    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
     const pa_buffer_attr* buffer = pa_stream_get_buffer_attr(stream);
     assert(buffer);
 
-    const char* class_name = "org/classpath/icedtea/pulseaudio/StreamBufferAttributes";
-    jclass cls = (*env)->FindClass(env, class_name);
-    assert(cls);
-    jmethodID constructor_mid = (*env)->GetMethodID(env, cls, "<init>", "(IIIII)V");
-    assert(constructor_mid);
     jint maxLength = buffer->maxlength;
     jint targetLength = buffer->tlength;
     jint preBuffering = buffer->prebuf;
     jint minimumRequest = buffer->minreq;
     jint fragmentSize = buffer->fragsize;
 
-    jobject return_object = (*env)->NewObject(env, cls, constructor_mid, maxLength, targetLength,
+    jobject return_object = (*env)->NewObject(env, buffer_attr_class,
+            buffer_attr_constructor_id, maxLength, targetLength,
             preBuffering, minimumRequest, fragmentSize);
 
     return return_object;
@@ -919,9 +1145,8 @@ static void set_buffer_attr_callback(pa_stream* stream, int success,
         void* userdata) {
 
     assert(stream);
-    JNIEnv* env = pulse_thread_env;
+    JNIEnv* env = getCurrentEnv();
     assert(env);
-    notifyWaitingOperations(env);
 
     if (success == 0) {
         throwByName(env, ILLEGAL_STATE_EXCEPTION, "set_buffer_attr failed");
@@ -931,38 +1156,21 @@ static void set_buffer_attr_callback(pa_stream* stream, int success,
 /*
  * Class:     org_classpath_icedtea_pulseaudio_Stream
  * Method:    native_pa_stream_set_buffer_attr
- * Signature: (Lorg/classpath/icedtea/pulseaudio/StreamBufferAttributes;)[B
+ * Signature: (Lorg/classpath/icedtea/pulseaudio/StreamBufferAttributes;)J
  */
-JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1set_1buffer_1attr
+JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1set_1buffer_1attr
 (JNIEnv* env, jobject obj, jobject bufferAttributeObject) {
 
-    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
 
-    jclass cls = (*env)->GetObjectClass(env, bufferAttributeObject);
-    assert(cls);
-
     pa_buffer_attr buffer;
 
-    jmethodID getMaxLengthID = (*env)->GetMethodID(env,cls,"getMaxLength","()I");
-    assert(getMaxLengthID);
-    buffer.maxlength = (uint32_t) (*env)->CallIntMethod(env, bufferAttributeObject, getMaxLengthID);
-
-    jmethodID getTargetLengthID = (*env)->GetMethodID(env,cls,"getTargetLength","()I");
-    assert(getTargetLengthID);
-    buffer.tlength = (uint32_t) (*env)->CallIntMethod(env, bufferAttributeObject, getTargetLengthID);
-
-    jmethodID getPreBufferingID = (*env)->GetMethodID(env,cls,"getPreBuffering","()I");
-    assert(getPreBufferingID);
-    buffer.prebuf = (uint32_t) (*env)->CallIntMethod(env, bufferAttributeObject, getPreBufferingID);
-
-    jmethodID getMinimumRequestID = (*env)->GetMethodID(env, cls, "getMinimumRequest", "()I");
-    assert(getMinimumRequestID);
-    buffer.minreq = (uint32_t) (*env)->CallIntMethod(env, bufferAttributeObject, getMinimumRequestID );
-
-    jmethodID getFragmentSizeID = (*env)->GetMethodID(env,cls,"getFragmentSize","()I");
-    assert(getFragmentSizeID);
-    buffer.fragsize = (uint32_t) (*env)->CallIntMethod(env, bufferAttributeObject, getFragmentSizeID );
+    buffer.maxlength = (uint32_t) (*env)->CallIntMethod(env, bufferAttributeObject, get_max_length_id);
+    buffer.tlength = (uint32_t) (*env)->CallIntMethod(env, bufferAttributeObject, get_target_length_id);
+    buffer.prebuf = (uint32_t) (*env)->CallIntMethod(env, bufferAttributeObject, get_pre_buffering_id);
+    buffer.minreq = (uint32_t) (*env)->CallIntMethod(env, bufferAttributeObject, get_minimum_request_id);
+    buffer.fragsize = (uint32_t) (*env)->CallIntMethod(env, bufferAttributeObject, get_fragment_size_id);
 
     /*
      const pa_buffer_attr* old_buffer = pa_stream_get_buffer_attr(stream);
@@ -975,15 +1183,14 @@ JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native
     pa_operation* operation = pa_stream_set_buffer_attr(stream, &buffer, set_buffer_attr_callback, NULL);
 
     assert(operation);
-    return convertNativePointerToJava(env,operation);
+    return convertNativePointerToJava(operation);
 }
 
 static void update_sample_rate_callback(pa_stream* stream, int success,
         void* userdata) {
     assert(stream);
-    JNIEnv* env = pulse_thread_env;
+    JNIEnv* env = getCurrentEnv();
     assert(env);
-    notifyWaitingOperations(env);
 
     if (success == 0) {
         throwByName(env, ILLEGAL_STATE_EXCEPTION, "update_sampl_rate failed");
@@ -993,30 +1200,30 @@ static void update_sample_rate_callback(pa_stream* stream, int success,
 /*
  * Class:     org_classpath_icedtea_pulseaudio_Stream
  * Method:    native_pa_stream_update_sample_rate
- * Signature: (I)[B
+ * Signature: (I)J
  */
-JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1update_1sample_1rate
+JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1update_1sample_1rate
 (JNIEnv* env, jobject obj, jint newRate) {
 
     uint32_t rate = (uint32_t) newRate;
 
-    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = (pa_stream*)getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
     pa_operation* operation = pa_stream_update_sample_rate(stream,rate, update_sample_rate_callback, NULL);
     assert(operation);
-    return convertNativePointerToJava(env, operation);
+    return convertNativePointerToJava(operation);
 
 }
 
 /*
  * Class:     org_classpath_icedtea_pulseaudio_Stream
  * Method:    native_set_volume
- * Signature: (F)[B
+ * Signature: (F)J
  */
-JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1set_1volume
+JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1set_1volume
 (JNIEnv *env, jobject obj, jfloat new_volume) {
 
-    pa_stream *stream = getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream *stream = getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
     pa_context *context = pa_stream_get_context(stream);
     assert(context);
@@ -1028,7 +1235,7 @@ JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native
     pa_operation* o = pa_context_set_sink_input_volume(context, stream_id, pa_cvolume_set(&cv, channels, new_volume), set_sink_input_volume_callback, NULL);
     assert(o);
 
-    return convertNativePointerToJava(env, o);
+    return convertNativePointerToJava(o);
 
 }
 
@@ -1036,7 +1243,7 @@ JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native
 static void get_sink_input_volume_callback(pa_context *context, const pa_sink_input_info *i,
         int eol, void *userdata) {
 
-    JNIEnv* env = pulse_thread_env;
+    JNIEnv* env = getCurrentEnv();
 
     assert(context);
     assert(env);
@@ -1044,15 +1251,14 @@ static void get_sink_input_volume_callback(pa_context *context, const pa_sink_in
     assert(obj);
 
     if (eol == 0) {
-        jclass cls = (*pulse_thread_env)->GetObjectClass(pulse_thread_env, obj);
+        jclass cls = (*env)->GetObjectClass(env, obj);
         assert(cls);
-        jmethodID mid1 = (*pulse_thread_env)->GetMethodID(pulse_thread_env, cls,
+        jmethodID mid1 = (*env)->GetMethodID(env, cls,
                 "update_channels_and_volume", "(IF)V");
         assert(mid1);
-        (*pulse_thread_env)->CallVoidMethod(pulse_thread_env, obj, mid1,
+        (*env)->CallVoidMethod(env, obj, mid1,
                 (int) (i->volume).channels, (float) (i->volume).values[0]) ;
     } else {
-        notifyWaitingOperations(pulse_thread_env);
         (*env)->DeleteGlobalRef(env, obj);
     }
 }
@@ -1060,12 +1266,12 @@ static void get_sink_input_volume_callback(pa_context *context, const pa_sink_in
 /*
  * Class:     org_classpath_icedtea_pulseaudio_Stream
  * Method:    native_update_volume
- * Signature: ()[B
+ * Signature: ()J
  */
-JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1update_1volume
+JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1update_1volume
 (JNIEnv* env, jobject obj) {
 
-    pa_stream* stream = getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream* stream = getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
 
     int sink_input_index = pa_stream_get_index(stream);
@@ -1076,13 +1282,13 @@ JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native
     obj = (*env)->NewGlobalRef(env, obj);
     pa_operation *o = pa_context_get_sink_input_info(context, sink_input_index , get_sink_input_volume_callback, obj);
     assert(o);
-    return convertNativePointerToJava(env, o);
+    return convertNativePointerToJava(o);
 
 
 }
 
 JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_bytesInBuffer(JNIEnv *env, jobject obj) {
-    pa_stream *stream = getJavaPointer(env, obj, STREAM_POINTER);
+    pa_stream *stream = getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
     const pa_timing_info *timing_info = pa_stream_get_timing_info(stream);
     int write_index = timing_info->write_index;
@@ -1090,12 +1296,12 @@ JNIEXPORT jint JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_bytesInBuffe
     return write_index - read_index;
 }
 
-JNIEXPORT jbyteArray JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1updateTimingInfo(JNIEnv* env, jobject obj) {
-    pa_stream *stream = getJavaPointer(env, obj, STREAM_POINTER);
+JNIEXPORT jlong JNICALL Java_org_classpath_icedtea_pulseaudio_Stream_native_1pa_1stream_1updateTimingInfo(JNIEnv* env, jobject obj) {
+    pa_stream *stream = getJavaPointer(env, obj, stream_pointer_id);
     assert(stream);
     pa_operation* o = pa_stream_update_timing_info(stream, update_timing_info_callback, NULL);
     assert(o);
-    return convertNativePointerToJava(env, o);
+    return convertNativePointerToJava(o);
 
 }
 
@@ -0,0 +1,123 @@
+/* ByteRing.java
+   Copyright (C) 2008 Red Hat, Inc.
+
+This file is part of IcedTea-Sound.
+
+IcedTea-Sound is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 2.
+
+IcedTea-Sound is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with IcedTea-Sound; see the file COPYING.  If not, write to
+the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+02110-1301 USA.
+
+Linking this library statically or dynamically with other modules is
+making a combined work based on this library.  Thus, the terms and
+conditions of the GNU General Public License cover the whole
+combination.
+
+As a special exception, the copyright holders of this library give you
+permission to link this library with independent modules to produce an
+executable, regardless of the license terms of these independent
+modules, and to copy and distribute the resulting executable under
+terms of your choice, provided that you also meet, for each linked
+independent module, the terms and conditions of the license of that
+module.  An independent module is a module which is not derived from
+or based on this library.  If you modify this library, you may extend
+this exception to your version of the library, but you are not
+obligated to do so.  If you do not wish to do so, delete this
+exception statement from your version.
+ */
+
+package org.classpath.icedtea.pulseaudio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed size ring of bytes between one producer thread and one consumer
+ * thread. Neither side takes a lock: each only moves its own position and
+ * reads the other's, so the producer can fill the ring while the consumer
+ * empties it.
+ *
+ * The positions count every byte that went through the ring, and the index
+ * into the array is the position modulo the capacity.
+ */
+final class ByteRing {
+
+    private final byte[] data;
+
+    // bytes read so far; only the consumer changes this
+    private volatile long head = 0;
+
+    // bytes written so far; only the producer changes this
+    private volatile long tail = 0;
+
+    ByteRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        data = new byte[capacity];
+    }
+
+    int capacity() {
+        return data.length;
+    }
+
+    /**
+     * @return the number of bytes that can be read
+     */
+    int size() {
+        return (int) (tail - head);
+    }
+
+    /**
+     * @return the number of bytes that can be written
+     */
+    int free() {
+        return data.length - size();
+    }
+
+    /**
+     * Producer side: copies length bytes from src, starting at offset, into the
+     * ring. There must be room for them.
+     */
+    void write(byte[] src, int offset, int length) {
+        assert (length <= free());
+        long t = tail;
+        int index = (int) (t % data.length);
+        int first = Math.min(length, data.length - index);
+        System.arraycopy(src, offset, data, index, first);
+        System.arraycopy(src, offset + first, data, 0, length - first);
+        tail = t + length;
+    }
+
+    /**
+     * Consumer side: moves as many bytes as there are, up to the remaining
+     * space in dst, from the ring to dst.
+     *
+     * @return the number of bytes moved
+     */
+    int read(ByteBuffer dst) {
+        long h = head;
+        int length = Math.min(dst.remaining(), (int) (tail - h));
+        int index = (int) (h % data.length);
+        int first = Math.min(length, data.length - index);
+        dst.put(data, index, first);
+        dst.put(data, 0, length - first);
+        head = h + length;
+        return length;
+    }
+
+    /**
+     * Consumer side: drops everything written so far
+     */
+    void clear() {
+        head = tail;
+    }
+}
@@ -0,0 +1,133 @@
+/* EventDispatcher.java
+   Copyright (C) 2008 Red Hat, Inc.
+
+This file is part of IcedTea-Sound.
+
+IcedTea-Sound is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 2.
+
+IcedTea-Sound is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with IcedTea-Sound; see the file COPYING.  If not, write to
+the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+02110-1301 USA.
+
+Linking this library statically or dynamically with other modules is
+making a combined work based on this library.  Thus, the terms and
+conditions of the GNU General Public License cover the whole
+combination.
+
+As a special exception, the copyright holders of this library give you
+permission to link this library with independent modules to produce an
+executable, regardless of the license terms of these independent
+modules, and to copy and distribute the resulting executable under
+terms of your choice, provided that you also meet, for each linked
+independent module, the terms and conditions of the license of that
+module.  An independent module is a module which is not derived from
+or based on this library.  If you modify this library, you may extend
+this exception to your version of the library, but you are not
+obligated to do so.  If you do not wish to do so, delete this
+exception statement from your version.
+ */
+
+package org.classpath.icedtea.pulseaudio;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs listener notifications for one line or mixer, one at a time and in the
+ * order they were dispatched, on a shared executor. This keeps application
+ * code, such as a LineListener, off the event loop thread: a slow listener
+ * then only delays the events of its own line, not every stream.
+ *
+ * Wakeups of threads inside this package do not go through here; they are
+ * done inline by the callbacks.
+ */
+final class EventDispatcher {
+
+    /*
+     * not a single thread: a listener of one line that waits for another
+     * line, say by closing it, must not hold up that line's events
+     */
+    private static final ExecutorService DEFAULT_EXECUTOR = Executors
+            .newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable,
+                        "PulseAudio Event Dispatcher");
+                // do not keep an application from exiting
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private static volatile Executor executor = DEFAULT_EXECUTOR;
+
+    private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+    // true while a drain of tasks has been handed to the executor
+    private boolean scheduled = false;
+
+    /**
+     * Sets the executor that listeners are notified on.
+     *
+     * @param newExecutor
+     *            the executor, or null for the default: a pool of daemon
+     *            threads shared by all lines
+     */
+    static void setExecutor(Executor newExecutor) {
+        executor = (newExecutor == null) ? DEFAULT_EXECUTOR : newExecutor;
+    }
+
+    /**
+     * Queues task to run after every task dispatched before it
+     */
+    void dispatch(Runnable task) {
+        synchronized (tasks) {
+            tasks.add(task);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        executor.execute(this::runTasks);
+    }
+
+    private void runTasks() {
+        boolean finished = false;
+        try {
+            Runnable task;
+            while ((task = nextTask()) != null) {
+                task.run();
+            }
+            finished = true;
+        } finally {
+            if (!finished) {
+                // a listener threw; the tasks after it still have to run
+                boolean more;
+                synchronized (tasks) {
+                    more = !tasks.isEmpty();
+                    scheduled = more;
+                }
+                if (more) {
+                    executor.execute(this::runTasks);
+                }
+            }
+        }
+    }
+
+    private Runnable nextTask() {
+        synchronized (tasks) {
+            Runnable task = tasks.poll();
+            if (task == null) {
+                scheduled = false;
+            }
+            return task;
+        }
+    }
+}
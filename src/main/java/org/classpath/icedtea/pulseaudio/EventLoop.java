@@ -39,28 +39,72 @@ package org.classpath.icedtea.pulseaudio;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.classpath.icedtea.pulseaudio.Debug.DebugLevel;
 
 /**
  * This class wraps pulseaudio's event loop. It also holds the lock used in the
  * rest of pulse-java
+ *
+ * By default the loop is driven from java by this class' thread. Setting the
+ * system property pulseaudio.mainloop=threaded makes it use a
+ * pa_threaded_mainloop instead, which runs on a native thread and is locked
+ * with the pa_threaded_mainloop lock.
+ *
+ * There can be more than one event loop, each with its own context and so its
+ * own connection to the server, lock and thread. Streams are spread over them,
+ * so that lines on different loops do not wait for each other. The system
+ * property pulseaudio.eventloops sets how many there are; the default is one.
+ * Loop 0 is the one the mixer and the ports use.
  */
 
 final class EventLoop implements Runnable {
 
     /*
      * any methods that can obstruct the behaviour of pa_mainloop should run
-     * synchronized
+     * between lock() and unlock()
      */
 
+    private static final boolean THREADED = isThreadedMainloopWanted();
+
     /*
-     * the threadLock object is the object used for synchronizing the
-     * non-thread-safe operations of pulseaudio's c api
+     * the lock used for synchronizing the non-thread-safe operations of
+     * pulseaudio's c api when the loop is driven from java. The event loop
+     * thread lets go of it only while it is polling
      */
-    final Object threadLock = new Object();
+    private final ReentrantLock pollLock = new ReentrantLock();
+
+    // how often lock() had to wait for another thread
+    private final LongAdder contendedLocks = new LongAdder();
+
+    /*
+     * with a threaded mainloop, pulseaudio's own lock is used instead. Java
+     * threads queue up for it on apiLock first, so that they park while
+     * waiting instead of blocking in native code, where a virtual thread would
+     * pin its carrier. apiLock also makes the native lock reentrant from
+     * java's point of view. The native loop thread holds the native lock
+     * whenever it calls into java and never takes apiLock.
+     */
+    private final ReentrantLock apiLock = new ReentrantLock();
+    private volatile Thread loopThread = null;
+
+    /* waiting for a signal with a threaded mainloop */
+    private final ReentrantLock signalLock = new ReentrantLock();
+
+    private static final int EVENT_LOOP_COUNT = getEventLoopCountSetting();
 
-    private static EventLoop instance = null;
+    private static EventLoop[] instances = null;
+
+    // the loop nextEventLoop() hands out next
+    private static final AtomicInteger nextIndex = new AtomicInteger();
+
+    private final int index;
 
     private List<ContextListener> contextListeners;
     // private List<SourceDataLine> lines;
@@ -84,27 +128,72 @@ final class EventLoop implements Runnable {
 
     private native int native_iterate(int timeout);
 
+    private native void native_wakeup();
+
     private native void native_shutdown();
 
+    private native void native_setup_threaded(String appName, String server);
+
+    private native void native_shutdown_threaded();
+
+    private native void native_lock();
+
+    private native void native_unlock();
+
     /*
      * These fields hold pointers
      */
-    private byte[] contextPointer;
-    private byte[] mainloopPointer;
+    private long contextPointer;
+    private long mainloopPointer;
+    // the java_context the native callbacks of this loop get as userdata
+    private long javaContextPointer;
+
+    private static native void init_ids();
 
     static {
         SecurityWrapper.loadNativeLibrary();
+        init_ids();
     }
 
-    private EventLoop() {
+    private EventLoop(int index) {
+        this.index = index;
         contextListeners = new ArrayList<ContextListener>();
     }
 
-    synchronized static EventLoop getEventLoop() {
-        if (instance == null) {
-            instance = new EventLoop();
+    /**
+     * @return the first event loop, which the mixer and ports use
+     */
+    static EventLoop getEventLoop() {
+        return getEventLoop(0);
+    }
+
+    synchronized static EventLoop getEventLoop(int index) {
+        if (index < 0 || index >= EVENT_LOOP_COUNT) {
+            throw new IllegalArgumentException("no event loop " + index);
+        }
+        if (instances == null) {
+            instances = new EventLoop[EVENT_LOOP_COUNT];
+            for (int i = 0; i < EVENT_LOOP_COUNT; i++) {
+                instances[i] = new EventLoop(i);
+            }
         }
-        return instance;
+        return instances[index];
+    }
+
+    /**
+     * @return the event loops in turn, for spreading new streams over them
+     */
+    static EventLoop nextEventLoop() {
+        int next = Math.floorMod(nextIndex.getAndIncrement(), EVENT_LOOP_COUNT);
+        return getEventLoop(next);
+    }
+
+    static int getEventLoopCount() {
+        return EVENT_LOOP_COUNT;
+    }
+
+    int getIndex() {
+        return index;
     }
 
     void setAppName(String appName) {
@@ -115,9 +204,48 @@ final class EventLoop implements Runnable {
         this.serverString = serverString;
     }
 
+    private static boolean isThreadedMainloopWanted() {
+        String systemSetting;
+        try {
+            systemSetting = System.getProperty("pulseaudio.mainloop");
+        } catch (SecurityException e) {
+            systemSetting = null;
+        }
+        return "threaded".equals(systemSetting);
+    }
+
+    private static int getEventLoopCountSetting() {
+        String systemSetting;
+        try {
+            systemSetting = System.getProperty("pulseaudio.eventloops");
+        } catch (SecurityException e) {
+            systemSetting = null;
+        }
+        if (systemSetting == null) {
+            return 1;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(systemSetting.trim()));
+        } catch (NumberFormatException e) {
+            Debug.println(DebugLevel.Warning, "EventLoop: ignoring invalid "
+                    + "pulseaudio.eventloops setting: " + systemSetting);
+            return 1;
+        }
+    }
+
     @Override
     public void run() {
-        native_setup(this.appName, this.serverString);
+        if (THREADED) {
+            runThreaded();
+            return;
+        }
+
+        pollLock.lock();
+        try {
+            native_setup(this.appName, this.serverString);
+        } finally {
+            pollLock.unlock();
+        }
 
         Debug.println(DebugLevel.Info, "Eventloop.run(): eventloop starting");
 
@@ -126,10 +254,13 @@ final class EventLoop implements Runnable {
          * every iteration of the loop might be slow
          */
         while (true) {
-            synchronized (threadLock) {
+            pollLock.lock();
+            try {
                 // timeout is in milliseconds
-                // timout = 0 means dont block
-                native_iterate(100);
+                // timout = 0 means dont block, -1 means block until there is
+                // something to do. libpulse wakes the loop up itself when
+                // another thread queues work; wakeup() covers everything else
+                native_iterate(-1);
 
                 if (Thread.interrupted()) {
                     native_shutdown();
@@ -140,16 +271,200 @@ final class EventLoop implements Runnable {
                     }
 
                     Debug.println(DebugLevel.Info,
-                            "EventLoop.run(): event loop terminated");
+                            "EventLoop.run(): event loop terminated, "
+                            + getContendedLockCount() + " contended locks");
 
                     return;
 
                 }
+            } finally {
+                pollLock.unlock();
             }
         }
 
     }
 
+    /*
+     * The pa_threaded_mainloop runs on its own native thread, so this thread
+     * only starts it and then waits to be interrupted to shut it down
+     */
+    private void runThreaded() {
+        native_setup_threaded(this.appName, this.serverString);
+
+        Debug.println(DebugLevel.Info,
+                "Eventloop.run(): threaded eventloop starting");
+
+        while (!Thread.interrupted()) {
+            LockSupport.park(this);
+        }
+
+        native_shutdown_threaded();
+        loopThread = null;
+
+        synchronized (contextListeners) {
+            contextListeners.clear();
+        }
+
+        Debug.println(DebugLevel.Info, "EventLoop.run(): event loop terminated");
+    }
+
+    /*
+     * Called from the native side on the pa_threaded_mainloop thread, once it
+     * is attached to the jvm
+     */
+    @SuppressWarnings("unused")
+    private void loopThreadStarted() {
+        loopThread = Thread.currentThread();
+    }
+
+    /**
+     * Takes the lock that protects the state of the pulseaudio c api. The lock
+     * is reentrant and must be released with unlock().
+     */
+    void lock() {
+        if (!THREADED) {
+            if (!pollLock.tryLock()) {
+                contendedLocks.increment();
+                pollLock.lock();
+            }
+            return;
+        }
+
+        if (Thread.currentThread() == loopThread) {
+            // callbacks already run with the lock held
+            return;
+        }
+        if (!apiLock.tryLock()) {
+            contendedLocks.increment();
+            apiLock.lock();
+        }
+        if (apiLock.getHoldCount() == 1) {
+            native_lock();
+        }
+    }
+
+    /**
+     * @return the number of times lock() found the lock held by another
+     *         thread since the event loop was created. With a threaded
+     *         mainloop, waits for the native loop thread are not counted.
+     */
+    long getContendedLockCount() {
+        return contendedLocks.sum();
+    }
+
+    void unlock() {
+        if (!THREADED) {
+            pollLock.unlock();
+            return;
+        }
+
+        if (Thread.currentThread() == loopThread) {
+            return;
+        }
+        assert (apiLock.isHeldByCurrentThread());
+        if (apiLock.getHoldCount() == 1) {
+            native_unlock();
+        }
+        apiLock.unlock();
+    }
+
+    /**
+     * Creates a condition to wait for with await() and to signal with
+     * signalAll(). Each thing that can be waited for, an operation or a
+     * stream that can be written to, has its own, so that signalling it only
+     * wakes up the threads that are interested.
+     */
+    Condition newCondition() {
+        if (!THREADED) {
+            return pollLock.newCondition();
+        }
+        return signalLock.newCondition();
+    }
+
+    /**
+     * Releases the lock, waits for condition to be signalled or the timeout,
+     * and takes the lock again. Must be called with the lock held.
+     *
+     * @param condition
+     *            a condition from newCondition()
+     * @param timeout
+     *            in milliseconds, 0 means wait until signalled
+     * @throws InterruptedException
+     */
+    void await(Condition condition, long timeout) throws InterruptedException {
+        if (!THREADED) {
+            if (timeout == 0) {
+                condition.await();
+            } else {
+                condition.await(timeout, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+
+        assert (Thread.currentThread() != loopThread);
+        assert (apiLock.isHeldByCurrentThread());
+        int holdCount = apiLock.getHoldCount();
+
+        /*
+         * take the signal lock before giving up the pulseaudio lock, so that
+         * a signal sent as soon as the loop thread gets the lock is not missed
+         */
+        signalLock.lock();
+        try {
+            native_unlock();
+            for (int i = 0; i < holdCount; i++) {
+                apiLock.unlock();
+            }
+            if (timeout == 0) {
+                condition.await();
+            } else {
+                condition.await(timeout, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            signalLock.unlock();
+            for (int i = 0; i < holdCount; i++) {
+                apiLock.lock();
+            }
+            native_lock();
+        }
+    }
+
+    /**
+     * Wakes up all the threads waiting for condition in await(). Must be
+     * called with the lock held.
+     */
+    void signalAll(Condition condition) {
+        if (!THREADED) {
+            condition.signalAll();
+            return;
+        }
+
+        signalLock.lock();
+        try {
+            condition.signalAll();
+        } finally {
+            signalLock.unlock();
+        }
+    }
+
+    /**
+     * Makes a blocked iteration of the event loop return right away, so that
+     * the loop notices changes pulseaudio does not know about, such as the
+     * loop thread being interrupted.
+     */
+    void wakeup() {
+        if (THREADED) {
+            // the native loop thread is not the one that was interrupted
+            return;
+        }
+        lock();
+        try {
+            native_wakeup();
+        } finally {
+            unlock();
+        }
+    }
+
     void addContextListener(ContextListener contextListener) {
         synchronized (contextListeners) {
             contextListeners.add(contextListener);
@@ -167,11 +482,14 @@ final class EventLoop implements Runnable {
     }
 
     void update(long status) {
-        synchronized (threadLock) {
+        lock();
+        try {
             // System.out.println(this.getClass().getName()
             // + ".update() called! status = " + status);
             this.status = status;
             fireEvent(new ContextEvent(status));
+        } finally {
+            unlock();
         }
 
         if (status == ContextEvent.FAILED) {
@@ -193,23 +511,26 @@ final class EventLoop implements Runnable {
 
     }
 
-    byte[] getContextPointer() {
+    long getContextPointer() {
         return contextPointer;
     }
 
-    byte[] getMainLoopPointer() {
+    long getMainLoopPointer() {
         return mainloopPointer;
     }
 
-    private native byte[] nativeUpdateTargetPortNameList();
+    private native long nativeUpdateTargetPortNameList();
 
-    private native byte[] nativeUpdateSourcePortNameList();
+    private native long nativeUpdateSourcePortNameList();
 
     synchronized List<String> updateTargetPortNameList() {
         targetPortNameList = new ArrayList<String>();
         Operation op;
-        synchronized (this.threadLock) {
-            op = new Operation(nativeUpdateTargetPortNameList());
+        lock();
+        try {
+            op = new Operation(nativeUpdateTargetPortNameList(), this);
+        } finally {
+            unlock();
         }
 
         op.waitForCompletion();
@@ -223,8 +544,11 @@ final class EventLoop implements Runnable {
     protected synchronized List<String> updateSourcePortNameList() {
         sourcePortNameList = new ArrayList<String>();
         Operation op;
-        synchronized (this.threadLock) {
-            op = new Operation(nativeUpdateSourcePortNameList());
+        lock();
+        try {
+            op = new Operation(nativeUpdateSourcePortNameList(), this);
+        } finally {
+            unlock();
         }
 
         op.waitForCompletion();
@@ -0,0 +1,103 @@
+/* ListenerList.java
+   Copyright (C) 2008 Red Hat, Inc.
+
+This file is part of IcedTea-Sound.
+
+IcedTea-Sound is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 2.
+
+IcedTea-Sound is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with IcedTea-Sound; see the file COPYING.  If not, write to
+the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+02110-1301 USA.
+
+Linking this library statically or dynamically with other modules is
+making a combined work based on this library.  Thus, the terms and
+conditions of the GNU General Public License cover the whole
+combination.
+
+As a special exception, the copyright holders of this library give you
+permission to link this library with independent modules to produce an
+executable, regardless of the license terms of these independent
+modules, and to copy and distribute the resulting executable under
+terms of your choice, provided that you also meet, for each linked
+independent module, the terms and conditions of the license of that
+module.  An independent module is a module which is not derived from
+or based on this library.  If you modify this library, you may extend
+this exception to your version of the library, but you are not
+obligated to do so.  If you do not wish to do so, delete this
+exception statement from your version.
+ */
+
+package org.classpath.icedtea.pulseaudio;
+
+import java.util.Arrays;
+
+/**
+ * A list of listeners that is copied whenever it changes. Notifying the
+ * listeners then needs neither a lock nor an allocation, and can not be
+ * upset by a listener being added or removed at the same time: get() returns
+ * an array that is never modified. Meant for lists that are walked on every
+ * callback but rarely change.
+ *
+ * A listener that is removed while the listeners are being notified may
+ * still be notified that once.
+ */
+final class ListenerList<T> {
+
+    private volatile T[] listeners;
+
+    /**
+     * @param empty
+     *            an empty array of the listener type
+     */
+    ListenerList(T[] empty) {
+        assert (empty.length == 0);
+        listeners = empty;
+    }
+
+    synchronized void add(T listener) {
+        T[] current = listeners;
+        T[] added = Arrays.copyOf(current, current.length + 1);
+        added[current.length] = listener;
+        listeners = added;
+    }
+
+    /**
+     * Removes the first occurrence of listener, if there is one
+     */
+    synchronized void remove(T listener) {
+        T[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].equals(listener)) {
+                T[] removed = Arrays.copyOf(current, current.length - 1);
+                System.arraycopy(current, i + 1, removed, i, current.length
+                        - i - 1);
+                listeners = removed;
+                return;
+            }
+        }
+    }
+
+    synchronized void clear() {
+        listeners = Arrays.copyOf(listeners, 0);
+    }
+
+    boolean isEmpty() {
+        return listeners.length == 0;
+    }
+
+    /**
+     * @return the listeners at the time of the call; the array must not be
+     *         modified
+     */
+    T[] get() {
+        return listeners;
+    }
+}
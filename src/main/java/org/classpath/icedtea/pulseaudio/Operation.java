@@ -38,6 +38,9 @@ exception statement from your version.
 package org.classpath.icedtea.pulseaudio;
 
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Condition;
 
 /**
  * Encapsulates a pa_operation object
@@ -45,7 +48,7 @@ import java.util.Arrays;
  * This is really needed only so that we can deallocate the reference counted
  * object. Any time a function returns an Operation object, the reference has
  * been incremented. The object wont be freed unless a releaseReference() is
- * done.
+ * done, or the reference is handed over with releaseWhenDone().
  *
  * Please see the pulseaudio api docs for more information on a pa_opreation
  * object
@@ -56,8 +59,14 @@ import java.util.Arrays;
 
 class Operation {
 
-    private byte[] operationPointer;
+    private long operationPointer;
     private EventLoop eventLoop;
+    // signalled when the operation is done or cancelled
+    private Condition finished;
+    // created on demand, guarded by the event loop lock
+    private CompletableFuture<Void> completion;
+    // set once releaseWhenDone() has taken over the reference
+    private volatile boolean givenUp = false;
 
     // These should never be written to in java. They will be initialized
     // properly in native code.
@@ -67,9 +76,12 @@ class Operation {
 
     private static native void init_constants();
 
+    private static native void init_ids();
+
     static {
         SecurityWrapper.loadNativeLibrary();
         init_constants();
+        init_ids();
     }
 
     // If value is not one of RUNNING, DONE, CANCELLED, throw an
@@ -87,16 +99,54 @@ class Operation {
 
     private native long native_get_state();
 
-    Operation(byte[] operationPointer) {
-        assert (operationPointer != null);
+    private native void native_set_state_callback();
+
+    /*
+     * Must be called with the event loop lock held, the same way as the
+     * function that started the operation, so that it can not finish before
+     * the state callback is in place. eventLoop is the loop whose context
+     * started the operation
+     */
+    Operation(long operationPointer, EventLoop eventLoop) {
+        assert (operationPointer != 0);
         this.operationPointer = operationPointer;
-        this.eventLoop = EventLoop.getEventLoop();
+        this.eventLoop = eventLoop;
+        this.finished = eventLoop.newCondition();
+        native_set_state_callback();
+    }
+
+    /*
+     * Called from the native side, with the event loop lock held, once the
+     * operation is no longer running
+     */
+    @SuppressWarnings("unused")
+    private void stateCallback() {
+        eventLoop.signalAll(finished);
+        if (completion != null) {
+            complete(native_get_state());
+        }
+    }
+
+    /*
+     * Completes the future from a pool thread. Dependent actions must not run
+     * on the event loop thread: they may well start another operation and wait
+     * for it, which would stall the loop that is supposed to finish it
+     */
+    private void complete(long state) {
+        final CompletableFuture<Void> future = completion;
+        if (state == DONE) {
+            ForkJoinPool.commonPool().execute(() -> future.complete(null));
+        } else {
+            ForkJoinPool.commonPool().execute(() -> future
+                    .completeExceptionally(new IllegalStateException(
+                            "operation cancelled")));
+        }
     }
 
     @Override
     protected void finalize() throws Throwable {
         // might catch operations which havent been released
-        assert (operationPointer == null);
+        assert (operationPointer == 0);
         super.finalize();
     }
 
@@ -104,9 +154,13 @@ class Operation {
      * Increase reference count by 1
      */
     void addReference() {
-        assert (operationPointer != null);
-        synchronized (eventLoop.threadLock) {
+        checkNotGivenUp();
+        assert (operationPointer != 0);
+        eventLoop.lock();
+        try {
             native_ref();
+        } finally {
+            eventLoop.unlock();
         }
     }
 
@@ -114,25 +168,69 @@ class Operation {
      * Decrease reference count by 1. If the count reaches 0, object will be freed
      */
     void releaseReference() {
-        assert (operationPointer != null);
-        synchronized (eventLoop.threadLock) {
+        checkNotGivenUp();
+        unref();
+    }
+
+    private void unref() {
+        assert (operationPointer != 0);
+        eventLoop.lock();
+        try {
             native_unref();
+        } finally {
+            eventLoop.unlock();
         }
-        operationPointer = null;
+        operationPointer = 0;
     }
 
     // FIXME broken function
     boolean isNull() {
-        if (operationPointer == null) {
+        if (operationPointer == 0) {
             return true;
         }
         return false;
     }
 
     long getState() {
-        assert (operationPointer != null);
-        synchronized (eventLoop.threadLock) {
+        assert (operationPointer != 0);
+        eventLoop.lock();
+        try {
             return checkNativeOperationState(native_get_state());
+        } finally {
+            eventLoop.unlock();
+        }
+    }
+
+    /**
+     * Returns a future that is completed once the operation is done, or
+     * completed exceptionally if it is cancelled. The caller gives up its
+     * reference to the future, which releases it when it completes: calling
+     * releaseWhenDone(), releaseReference(), addReference() or
+     * waitForCompletion() afterwards throws an IllegalStateException.
+     */
+    CompletableFuture<Void> releaseWhenDone() {
+        CompletableFuture<Void> future;
+        eventLoop.lock();
+        try {
+            checkNotGivenUp();
+            assert (operationPointer != 0);
+            givenUp = true;
+            completion = new CompletableFuture<Void>();
+            long state = checkNativeOperationState(native_get_state());
+            if (state != RUNNING) {
+                complete(state);
+            }
+            future = completion;
+        } finally {
+            eventLoop.unlock();
+        }
+        return future.whenComplete((result, error) -> unref());
+    }
+
+    private void checkNotGivenUp() {
+        if (givenUp) {
+            throw new IllegalStateException(
+                    "the operation was given up with releaseWhenDone()");
         }
     }
 
@@ -141,22 +239,24 @@ class Operation {
      *
      */
     void waitForCompletion() {
-        assert (operationPointer != null);
+        checkNotGivenUp();
+        assert (operationPointer != 0);
 
         boolean interrupted = false;
-        do {
-            synchronized (eventLoop.threadLock) {
-                if (getState() == DONE) {
-                    return;
-                }
+        eventLoop.lock();
+        try {
+            // a cancelled operation is not going to be done either
+            while (getState() == RUNNING) {
                 try {
-                    eventLoop.threadLock.wait();
+                    eventLoop.await(finished, 0);
                 } catch (InterruptedException e) {
                     // ingore the interrupt for now
                     interrupted = true;
                 }
             }
-        } while (getState() != DONE);
+        } finally {
+            eventLoop.unlock();
+        }
 
         // let the caller know about the interrupt
         if (interrupted) {
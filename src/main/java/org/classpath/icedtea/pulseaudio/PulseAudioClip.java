@@ -38,6 +38,8 @@ exception statement from your version.
 package org.classpath.icedtea.pulseaudio;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
@@ -79,8 +81,20 @@ public final class PulseAudioClip extends PulseAudioDataLine implements Clip,
      *
      */
     private final class ClipThread extends Thread {
+
+        // completed once the thread has finished playing
+        final CompletableFuture<Void> finished = new CompletableFuture<Void>();
+
         @Override
         public void run() {
+            try {
+                play();
+            } finally {
+                finished.complete(null);
+            }
+        }
+
+        private void play() {
 
             /*
              * The while loop below only works with LOOP_CONTINUOUSLY because we
@@ -123,8 +137,11 @@ public final class PulseAudioClip extends PulseAudioDataLine implements Clip,
             // drain
             Operation operation;
 
-            synchronized (eventLoop.threadLock) {
+            eventLoop.lock();
+            try {
                 operation = stream.drain();
+            } finally {
+                eventLoop.unlock();
             }
 
             operation.waitForCompletion();
@@ -135,13 +152,18 @@ public final class PulseAudioClip extends PulseAudioDataLine implements Clip,
 
     private ClipThread clipThread;
 
+    private PulseAudioVolumeControl volumeControl;
+
     private void writeFrames(int startingFrame, int lastFrame) {
 
         WriteListener writeListener = new WriteListener() {
             @Override
             public void update() {
-                synchronized (eventLoop.threadLock) {
-                    eventLoop.threadLock.notifyAll();
+                eventLoop.lock();
+                try {
+                    eventLoop.signalAll(dataCondition);
+                } finally {
+                    eventLoop.unlock();
                 }
             }
         };
@@ -151,41 +173,54 @@ public final class PulseAudioClip extends PulseAudioDataLine implements Clip,
         Debug.println(DebugLevel.Verbose,
                 "PulseAudioClip$ClipThread.writeFrames(): Writing");
 
+        /*
+         * The clip is copied straight into memory borrowed from the stream.
+         * The copy has to be made with the event loop lock held as well: the
+         * stream lets go of that memory if it fails, from the event loop,
+         * without close() being called.
+         */
+        int frameSize = getFormat().getFrameSize();
         int remainingFrames = lastFrame - startingFrame - 1;
         while (remainingFrames > 0) {
-            synchronized (eventLoop.threadLock) {
-                int availableSize;
-
-                do {
-                    availableSize = stream.getWritableSize();
-                    if (availableSize < 0) {
+            ByteBuffer buffer;
+            eventLoop.lock();
+            try {
+                try {
+                    buffer = stream.beginWrite(remainingFrames * frameSize,
+                            frameSize);
+                } catch (IllegalStateException e) {
+                    Thread.currentThread().interrupt();
+                    stream.removeWriteListener(writeListener);
+                    return;
+                }
+                if (buffer == null) {
+                    try {
+                        eventLoop.await(dataCondition, 0);
+                    } catch (InterruptedException e) {
+                        // System.out
+                        // .println("interrupted while waiting for
+                        // getWritableSize");
+                        // clean up and return
                         Thread.currentThread().interrupt();
                         stream.removeWriteListener(writeListener);
                         return;
                     }
-                    if (availableSize == 0) {
-                        try {
-                            eventLoop.threadLock.wait();
-                        } catch (InterruptedException e) {
-                            // System.out
-                            // .println("interrupted while waiting for
-                            // getWritableSize");
-                            // clean up and return
-                            Thread.currentThread().interrupt();
-                            stream.removeWriteListener(writeListener);
-                            return;
-                        }
-                    }
+                    continue;
+                }
+
+                int bytesWritten = buffer.capacity();
+                buffer.put(data, currentFrame * frameSize, bytesWritten);
 
-                } while (availableSize == 0);
+                if (stream.commitWrite(bytesWritten) < 0) {
+                    Thread.currentThread().interrupt();
+                    stream.removeWriteListener(writeListener);
+                    return;
+                }
 
-                int framesToWrite = Math.min(remainingFrames, availableSize
-                        / getFormat().getFrameSize());
-                stream.write(data, currentFrame * getFormat().getFrameSize(),
-                        framesToWrite * getFormat().getFrameSize());
-                remainingFrames -= framesToWrite;
-                currentFrame += framesToWrite;
-                framesSinceOpen += framesToWrite;
+                int framesWritten = bytesWritten / frameSize;
+                remainingFrames -= framesWritten;
+                currentFrame += framesWritten;
+                framesSinceOpen += framesWritten;
                 if (Thread.interrupted()) {
                     Thread.currentThread().interrupt();
                     break;
@@ -193,6 +228,8 @@ public final class PulseAudioClip extends PulseAudioDataLine implements Clip,
                 // System.out.println("remaining frames" + remainingFrames);
                 // System.out.println("currentFrame: " + currentFrame);
                 // System.out.println("framesSinceOpen: " + framesSinceOpen);
+            } finally {
+                eventLoop.unlock();
             }
         }
 
@@ -217,14 +254,24 @@ public final class PulseAudioClip extends PulseAudioDataLine implements Clip,
                 ((bufferSize / 10) > 100 ? bufferSize / 10 : 100), 0);
 
         if (masterStream != null) {
-            synchronized (eventLoop.threadLock) {
+            eventLoop.lock();
+            try {
                 stream.connectForPlayback(Stream.DEFAULT_DEVICE,
+                        Stream.FLAG_START_CORKED | Stream.FLAG_AUTO_TIMING_UPDATE
+                                | Stream.FLAG_INTERPOLATE_TIMING,
                         bufferAttributes, masterStream.getStreamPointer());
+            } finally {
+                eventLoop.unlock();
             }
         } else {
-            synchronized (eventLoop.threadLock) {
+            eventLoop.lock();
+            try {
                 stream.connectForPlayback(Stream.DEFAULT_DEVICE,
-                        bufferAttributes, null);
+                        Stream.FLAG_START_CORKED | Stream.FLAG_AUTO_TIMING_UPDATE
+                                | Stream.FLAG_INTERPOLATE_TIMING,
+                        bufferAttributes, 0);
+            } finally {
+                eventLoop.unlock();
             }
         }
     }
@@ -283,15 +330,44 @@ public final class PulseAudioClip extends PulseAudioDataLine implements Clip,
 
         Operation operation;
 
-        synchronized (eventLoop.threadLock) {
+        eventLoop.lock();
+        try {
             operation = stream.drain();
+        } finally {
+            eventLoop.unlock();
         }
 
         operation.waitForCompletion();
         operation.releaseReference();
+        framesDrained = framesSinceOpen;
 
     }
 
+    /**
+     * Like {@link #drain()}, but returns right away. The drain is requested
+     * once the clip thread has finished, from that thread.
+     *
+     * @return a future completed once the clip has been drained
+     */
+    public CompletableFuture<Void> drainAsync() {
+        if (!isOpen) {
+            throw new IllegalStateException("line not open");
+        }
+
+        return clipThreadFinished().thenCompose(v -> {
+            Operation operation;
+            eventLoop.lock();
+            try {
+                operation = stream.drain();
+            } finally {
+                eventLoop.unlock();
+            }
+            long framesWritten = framesSinceOpen;
+            return operation.releaseWhenDone().thenRun(
+                    () -> framesDrained = framesWritten);
+        });
+    }
+
     @Override
     public void flush() {
         if (!isOpen) {
@@ -299,14 +375,38 @@ public final class PulseAudioClip extends PulseAudioDataLine implements Clip,
         }
 
         Operation operation;
-        synchronized (eventLoop.threadLock) {
+        eventLoop.lock();
+        try {
             operation = stream.flush();
             operation.waitForCompletion();
+        } finally {
+            eventLoop.unlock();
         }
         operation.releaseReference();
 
     }
 
+    /**
+     * Like {@link #flush()}, but does not wait for the server to drop the
+     * buffered data.
+     *
+     * @return a future completed once the clip has been flushed
+     */
+    public CompletableFuture<Void> flushAsync() {
+        if (!isOpen) {
+            throw new IllegalStateException("line not open");
+        }
+
+        Operation operation;
+        eventLoop.lock();
+        try {
+            operation = stream.flush();
+        } finally {
+            eventLoop.unlock();
+        }
+        return operation.releaseWhenDone();
+    }
+
     @Override
     public int getFrameLength() {
         if (!isOpen) {
@@ -318,23 +418,24 @@ public final class PulseAudioClip extends PulseAudioDataLine implements Clip,
 
     @Override
     public int getFramePosition() {
-        if (!isOpen) {
-            throw new IllegalStateException("Line not open");
-        }
-        synchronized (clipLock) {
-            return (int) framesSinceOpen;
-        }
+        return (int) getLongFramePosition();
     }
 
+    /**
+     * The number of frames played since the clip was opened, as heard rather
+     * than as written, from the server's interpolated timing.
+     */
     @Override
     public long getLongFramePosition() {
         if (!isOpen) {
             throw new IllegalStateException("Line not open");
         }
 
+        long framesWritten;
         synchronized (clipLock) {
-            return framesSinceOpen;
+            framesWritten = framesSinceOpen;
         }
+        return getPlayedFrames(framesWritten);
     }
 
     @Override
@@ -353,9 +454,7 @@ public final class PulseAudioClip extends PulseAudioDataLine implements Clip,
             throw new IllegalStateException("Line not open");
         }
 
-        synchronized (clipLock) {
-            return (long) (framesSinceOpen / currentFormat.getFrameRate() * SECONDS_TO_MICROSECONDS);
-        }
+        return (long) (getLongFramePosition() / currentFormat.getFrameRate() * SECONDS_TO_MICROSECONDS);
     }
 
     @Override
@@ -410,8 +509,7 @@ public final class PulseAudioClip extends PulseAudioDataLine implements Clip,
         endFrame = frameCount - 1;
         loopsLeft = 0;
 
-        PulseAudioVolumeControl volumeControl = new PulseAudioVolumeControl(
-                this, eventLoop);
+        volumeControl = new PulseAudioVolumeControl(this, eventLoop);
         controls.add(volumeControl);
 
         PulseAudioMixer mixer = PulseAudioMixer.getInstance();
@@ -424,11 +522,11 @@ public final class PulseAudioClip extends PulseAudioDataLine implements Clip,
 
     // FIXME
     @Override
-    public byte[] native_set_volume(float value) {
+    public long native_set_volume(float value) {
         return stream.native_set_volume(value);
     }
 
-    public byte[] native_update_volume() {
+    public long native_update_volume() {
         return stream.native_update_volume();
     }
 
@@ -527,6 +625,19 @@ public final class PulseAudioClip extends PulseAudioDataLine implements Clip,
 
         super.start();
 
+        startClipThread();
+    }
+
+    @Override
+    public CompletableFuture<Void> startAsync() {
+        if (isStarted) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return super.startAsync().thenRun(this::startClipThread);
+    }
+
+    private void startClipThread() {
         if (!clipThread.isAlive()) {
             synchronized (clipLock) {
                 loopsLeft = 0;
@@ -548,6 +659,53 @@ public final class PulseAudioClip extends PulseAudioDataLine implements Clip,
             return;
         }
 
+        stopClipThread();
+
+        super.stop();
+
+    }
+
+    /**
+     * Like {@link #stop()}, but returns right away. The clip thread is
+     * interrupted, and the stream is corked once it has finished.
+     *
+     * @return a future completed once the clip has stopped
+     */
+    @Override
+    public CompletableFuture<Void> stopAsync() {
+        if (!isOpen) {
+            throw new IllegalStateException("Line not open");
+        }
+
+        if (!isStarted) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        if (clipThread.isAlive()) {
+            clipThread.interrupt();
+        }
+        return clipThreadFinished().thenCompose(v -> {
+            synchronized (clipLock) {
+                loopsLeft = 0;
+            }
+            return super.stopAsync();
+        });
+    }
+
+    /*
+     * Returns a future completed once the clip thread has finished, so that
+     * nothing has to block to wait for it
+     */
+    private CompletableFuture<Void> clipThreadFinished() {
+        ClipThread thread = clipThread;
+        if (!thread.isAlive()) {
+            // finished, or never started
+            return CompletableFuture.completedFuture(null);
+        }
+        return thread.finished;
+    }
+
+    private void stopClipThread() {
         if (clipThread.isAlive()) {
             clipThread.interrupt();
         }
@@ -559,9 +717,6 @@ public final class PulseAudioClip extends PulseAudioDataLine implements Clip,
         synchronized (clipLock) {
             loopsLeft = 0;
         }
-
-        super.stop();
-
     }
 
     @Override
@@ -37,7 +37,9 @@ exception statement from your version.
 
 package org.classpath.icedtea.pulseaudio;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Condition;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
@@ -57,11 +59,20 @@ abstract class PulseAudioDataLine extends PulseAudioLine implements DataLine {
 
     protected static final int DEFAULT_BUFFER_SIZE = StreamBufferAttributes.SANE_DEFAULT;
 
+    // indices into the array filled by getTimingInfo(long[])
+    public static final int TIMING_TIME = Stream.TIMING_TIME;
+    public static final int TIMING_LATENCY = Stream.TIMING_LATENCY;
+    public static final int TIMING_READ_INDEX = Stream.TIMING_READ_INDEX;
+    public static final int TIMING_WRITE_INDEX = Stream.TIMING_WRITE_INDEX;
+    public static final int TIMING_PLAYING = Stream.TIMING_PLAYING;
+    public static final int TIMING_TIMESTAMP = Stream.TIMING_TIMESTAMP;
+    public static final int TIMING_INFO_SIZE = Stream.TIMING_INFO_SIZE;
+
     // override this to set the stream name
     protected String streamName;
 
     // true between start() and stop()
-    protected boolean isStarted = false;
+    protected volatile boolean isStarted = false;
 
     // true between a started and an underflow callback
     protected boolean dataWritten = false;
@@ -77,30 +88,136 @@ abstract class PulseAudioDataLine extends PulseAudioLine implements DataLine {
     // the total number of frames played since this line was opened
     protected long framesSinceOpen = 0;
 
+    // the latency to open the line with, in microseconds, or 0 to go by the
+    // buffer size
+    protected long requestedLatency = 0;
+
+    private static final int MICROSECONDS_PER_SECOND = 1000000;
+
+    /*
+     * the frames written before the last drain() returned. drain() promises
+     * they have been played, even if the stream's clock, which also counts the
+     * latency of the device, is not that far yet
+     */
+    protected volatile long framesDrained = 0;
+
     protected EventLoop eventLoop = null;
+    // the event loop to open the stream on, or -1 for the next one in turn
+    private int eventLoopAffinity = -1;
+    // signalled when the stream can be written to or read from, is corked, or
+    // the line is started
+    protected Condition dataCondition = null;
     protected Semaphore semaphore = new Semaphore(0);
     protected Stream stream;
-    boolean writeInterrupted = false;
+    volatile boolean writeInterrupted = false;
 
     protected void open(AudioFormat format, int bufferSize)
             throws LineUnavailableException {
+        beginOpen(format, bufferSize);
+        finishOpen();
+    }
+
+    /*
+     * Opening is split in two so that PulseAudioMixer.openLines() can connect
+     * the streams of many lines before waiting for any of them: beginOpen()
+     * creates and connects the stream and finishOpen() waits for the server to
+     * make it ready. finishOpen() must be called after a beginOpen() that did
+     * not throw.
+     */
+    void beginOpen(AudioFormat format, int bufferSize)
+            throws LineUnavailableException {
 
         if (isOpen()) {
             throw new IllegalStateException("Line is already open");
         }
+        framesDrained = 0;
 
         PulseAudioMixer mixer = PulseAudioMixer.getInstance();
         if (!mixer.isOpen()) {
             mixer.open();
         }
 
-        eventLoop = EventLoop.getEventLoop();
+        if (eventLoopAffinity < 0) {
+            eventLoop = EventLoop.nextEventLoop();
+        } else {
+            eventLoop = EventLoop.getEventLoop(eventLoopAffinity);
+        }
+        dataCondition = eventLoop.newCondition();
 
         createStream(format);
         addStreamListeners();
         connect(null, bufferSize);
     }
 
+    void finishOpen() throws LineUnavailableException {
+        waitUntilReady();
+        lineOpened();
+    }
+
+    /**
+     * @return the number of bytes, in whole frames but at least one frame,
+     *         that play in the given number of microseconds
+     */
+    protected int latencyToBytes(long microseconds) {
+        int frameSize = currentFormat.getFrameSize();
+        long frames = (long) (microseconds * getStreamFrameRate()
+                / MICROSECONDS_PER_SECOND);
+        return (int) Math.max(frameSize, Math.min(frames * frameSize,
+                StreamBufferAttributes.MAX_VALUE));
+    }
+
+    protected long bytesToLatency(int bytes) {
+        int frames = bytes / currentFormat.getFrameSize();
+        return (long) (frames / getStreamFrameRate() * MICROSECONDS_PER_SECOND);
+    }
+
+    /*
+     * the rate createStream() opens the stream with
+     */
+    private float getStreamFrameRate() {
+        float frameRate = currentFormat.getFrameRate();
+        if (frameRate == (float) AudioSystem.NOT_SPECIFIED) {
+            return 44100.0f;
+        }
+        return frameRate;
+    }
+
+    /**
+     * The number of frames heard so far, from the stream's interpolated
+     * clock. This is a local calculation, without a round trip to the server.
+     * The count never goes beyond framesWritten, and it falls back on
+     * framesWritten until the server has sent its first timing update.
+     *
+     * @param framesWritten
+     *            the number of frames written to the stream since it was
+     *            opened
+     */
+    protected long getPlayedFrames(long framesWritten) {
+        if (!isOpen()) {
+            return framesWritten;
+        }
+        long time;
+        eventLoop.lock();
+        try {
+            time = stream.getTime();
+        } finally {
+            eventLoop.unlock();
+        }
+        if (time < 0) {
+            return framesWritten;
+        }
+        long frames = (long) (time * (double) getStreamFrameRate()
+                / MICROSECONDS_PER_SECOND);
+        return Math.min(Math.max(frames, framesDrained), framesWritten);
+    }
+
+    /**
+     * Called once the stream of the line is ready, so that subclasses can set
+     * up the rest of the line.
+     */
+    protected void lineOpened() {
+    }
+
     private void createStream(AudioFormat format)
             throws LineUnavailableException {
 
@@ -126,12 +243,15 @@ abstract class PulseAudioDataLine extends PulseAudioLine implements DataLine {
 
                 String formatString = (String) myFormat
                         .getProperty(PulseAudioMixer.PULSEAUDIO_FORMAT_KEY);
-                synchronized (eventLoop.threadLock) {
+                eventLoop.lock();
+                try {
 
-                    stream = new Stream(eventLoop.getContextPointer(),
-                            streamName, Stream.Format.valueOf(formatString),
+                    stream = new Stream(eventLoop, streamName,
+                            Stream.Format.valueOf(formatString),
                             (int) sampleRate, myFormat.getChannels());
 
+                } finally {
+                    eventLoop.unlock();
                 }
                 currentFormat = format;
                 isOpen = true;
@@ -155,18 +275,20 @@ abstract class PulseAudioDataLine extends PulseAudioLine implements DataLine {
 
             @Override
             public void update() {
-                synchronized (eventLoop.threadLock) {
+                eventLoop.lock();
+                try {
 
                     /*
-                     * Note the order: first we notify all the listeners, and
-                     * then return. this means no race conditions when the
-                     * listeners are removed before they get called by close
-                     *
-                     * eg:
+                     * The listeners are taken when the event is fired, so
+                     * they are notified even if they are removed right after
+                     * open() or close() returns:
                      *
                      * line.close(); line.removeLineListener(listener)
                      *
-                     * the listener is guaranteed to have run
+                     * open() and close() do not wait for the listeners to
+                     * have run, though; they are only woken up here. A
+                     * listener may then open or close another line without
+                     * waiting for its own notification to finish.
                      */
 
                     if (stream.getState() == Stream.STATE_READY) {
@@ -186,6 +308,8 @@ abstract class PulseAudioDataLine extends PulseAudioLine implements DataLine {
                         }
                         semaphore.release();
                     }
+                } finally {
+                    eventLoop.unlock();
                 }
             }
         };
@@ -211,8 +335,11 @@ abstract class PulseAudioDataLine extends PulseAudioLine implements DataLine {
                 if (!dataWritten) {
                     fireLineEvent(new LineEvent(PulseAudioDataLine.this,
                             LineEvent.Type.START, framesSinceOpen));
-                    synchronized (PulseAudioDataLine.this) {
-                        PulseAudioDataLine.this.notifyAll();
+                    eventLoop.lock();
+                    try {
+                        eventLoop.signalAll(dataCondition);
+                    } finally {
+                        eventLoop.unlock();
                     }
                 }
                 dataWritten = true;
@@ -226,20 +353,41 @@ abstract class PulseAudioDataLine extends PulseAudioLine implements DataLine {
 
             @Override
             public void update() {
-                synchronized (eventLoop.threadLock) {
-                    eventLoop.threadLock.notifyAll();
+                eventLoop.lock();
+                try {
+                    eventLoop.signalAll(dataCondition);
+                } finally {
+                    eventLoop.unlock();
                 }
             }
 
         };
         stream.addWriteListener(writeNotifier);
 
+        Stream.ReadListener readNotifier = new Stream.ReadListener() {
+
+            @Override
+            public void update() {
+                eventLoop.lock();
+                try {
+                    eventLoop.signalAll(dataCondition);
+                } finally {
+                    eventLoop.unlock();
+                }
+            }
+
+        };
+        stream.addReadListener(readNotifier);
+
         Stream.CorkListener corkListener = new Stream.CorkListener() {
 
             @Override
             public void update() {
-                synchronized (eventLoop.threadLock) {
-                    eventLoop.threadLock.notifyAll();
+                eventLoop.lock();
+                try {
+                    eventLoop.signalAll(dataCondition);
+                } finally {
+                    eventLoop.unlock();
                 }
             }
 
@@ -251,8 +399,11 @@ abstract class PulseAudioDataLine extends PulseAudioLine implements DataLine {
             throws LineUnavailableException {
 
         try {
-            synchronized (eventLoop.threadLock) {
+            eventLoop.lock();
+            try {
                 connectLine(bufferSize, masterStream);
+            } finally {
+                eventLoop.unlock();
             }
         } catch (LineUnavailableException e) {
             // error connecting to the server!
@@ -264,15 +415,21 @@ abstract class PulseAudioDataLine extends PulseAudioLine implements DataLine {
             throw e;
 
         }
+    }
+
+    private void waitUntilReady() throws LineUnavailableException {
         try {
             semaphore.acquire();
-            synchronized (eventLoop.threadLock) {
+            eventLoop.lock();
+            try {
                 if (stream.getState() != Stream.STATE_READY) {
                     stream.disconnect();
                     stream.free();
                     throw new LineUnavailableException(
                             "unable to obtain a line");
                 }
+            } finally {
+                eventLoop.unlock();
             }
         } catch (InterruptedException e) {
             throw new LineUnavailableException("unable to prepare stream");
@@ -299,8 +456,11 @@ abstract class PulseAudioDataLine extends PulseAudioLine implements DataLine {
             return;
         }
 
-        synchronized (eventLoop.threadLock) {
+        eventLoop.lock();
+        try {
             stream.disconnect();
+        } finally {
+            eventLoop.unlock();
         }
 
         try {
@@ -309,8 +469,11 @@ abstract class PulseAudioDataLine extends PulseAudioLine implements DataLine {
             throw new RuntimeException("unable to prepare stream");
         }
 
-        synchronized (eventLoop.threadLock) {
+        eventLoop.lock();
+        try {
             stream.free();
+        } finally {
+            eventLoop.unlock();
         }
 
         super.close();
@@ -323,8 +486,11 @@ abstract class PulseAudioDataLine extends PulseAudioLine implements DataLine {
         sendEvents = false;
         drain();
 
-        synchronized (eventLoop.threadLock) {
+        eventLoop.lock();
+        try {
             stream.disconnect();
+        } finally {
+            eventLoop.unlock();
         }
         try {
             semaphore.acquire();
@@ -341,13 +507,42 @@ abstract class PulseAudioDataLine extends PulseAudioLine implements DataLine {
 
     @Override
     public void start() {
+        Operation op = requestStart();
+        if (op == null) {
+            return;
+        }
+
+        op.waitForCompletion();
+        op.releaseReference();
+        started();
+    }
+
+    /**
+     * Like {@link #start()}, but returns as soon as the request has been sent
+     * to the server instead of waiting for the reply.
+     *
+     * @return a future completed once the line has started
+     */
+    public CompletableFuture<Void> startAsync() {
+        Operation op = requestStart();
+        if (op == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return op.releaseWhenDone().thenRun(this::started);
+    }
+
+    /*
+     * Returns the uncork operation, or null if the line is already started
+     */
+    private Operation requestStart() {
         if (!isOpen()) {
             throw new IllegalStateException(
                     "Line must be open()ed before it can be start()ed");
         }
 
         if (isStarted) {
-            return;
+            return null;
 
         }
         if (dataWritten && (!isStarted)) {
@@ -355,32 +550,67 @@ abstract class PulseAudioDataLine extends PulseAudioLine implements DataLine {
                     LineEvent.Type.START, framesSinceOpen));
         }
 
-        Operation op;
-        synchronized (eventLoop.threadLock) {
-            op = stream.unCork();
+        eventLoop.lock();
+        try {
+            return stream.unCork();
+        } finally {
+            eventLoop.unlock();
+        }
+    }
+
+    private void started() {
+        eventLoop.lock();
+        try {
+            isStarted = true;
+            eventLoop.signalAll(dataCondition);
+        } finally {
+            eventLoop.unlock();
+        }
+    }
+
+    @Override
+    public void stop() {
+        Operation op = requestStop();
+        if (op == null) {
+            return;
         }
 
         op.waitForCompletion();
         op.releaseReference();
-        synchronized (this) {
-            this.notifyAll();
+
+        isStarted = false;
+    }
+
+    /**
+     * Like {@link #stop()}, but returns as soon as the request has been sent
+     * to the server instead of waiting for the reply.
+     *
+     * @return a future completed once the line has stopped
+     */
+    public CompletableFuture<Void> stopAsync() {
+        Operation op = requestStop();
+        if (op == null) {
+            return CompletableFuture.completedFuture(null);
         }
-        isStarted = true;
 
+        return op.releaseWhenDone().thenRun(() -> isStarted = false);
     }
 
-    @Override
-    public void stop() {
+    /*
+     * Returns the cork operation, or null if the line is not started
+     */
+    private Operation requestStop() {
         if (!isOpen()) {
             throw new IllegalStateException("Line must be opened before it can be stopped");
         }
         writeInterrupted = true;
         if (!isStarted) {
-            return;
+            return null;
         }
 
         Operation op;
-        synchronized (eventLoop.threadLock) {
+        eventLoop.lock();
+        try {
             op = stream.cork();
             // if there are no data on the line when stop was called,
             // don't send a stop event
@@ -388,12 +618,10 @@ abstract class PulseAudioDataLine extends PulseAudioLine implements DataLine {
                 fireLineEvent(new LineEvent(PulseAudioDataLine.this,
                         LineEvent.Type.STOP, framesSinceOpen));
             }
+        } finally {
+            eventLoop.unlock();
         }
-
-        op.waitForCompletion();
-        op.releaseReference();
-
-        isStarted = false;
+        return op;
     }
 
     /*
@@ -463,8 +691,11 @@ abstract class PulseAudioDataLine extends PulseAudioLine implements DataLine {
         if (isOpen()) {
 
             Operation o;
-            synchronized (eventLoop.threadLock) {
+            eventLoop.lock();
+            try {
                 o = stream.setName(streamName);
+            } finally {
+                eventLoop.unlock();
             }
             o.waitForCompletion();
             o.releaseReference();
@@ -475,6 +706,44 @@ abstract class PulseAudioDataLine extends PulseAudioLine implements DataLine {
 
     }
 
+    /**
+     * Like {@link #setName(String)}, but does not wait for the server to
+     * rename the stream.
+     *
+     * @return a future completed once the stream has been renamed
+     */
+    public CompletableFuture<Void> setNameAsync(String streamName) {
+        this.streamName = streamName;
+        if (!isOpen()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Operation o;
+        eventLoop.lock();
+        try {
+            o = stream.setName(streamName);
+        } finally {
+            eventLoop.unlock();
+        }
+        return o.releaseWhenDone();
+    }
+
+    /**
+     * Chooses the event loop the stream of this line is opened on the next
+     * time the line is opened. Lines on the same loop share its lock and
+     * thread. By default each line takes the next loop in turn.
+     *
+     * @param index
+     *            an event loop index below the pulseaudio.eventloops system
+     *            property, or -1 to take the next loop in turn
+     */
+    public void setEventLoopAffinity(int index) {
+        if (index < -1 || index >= EventLoop.getEventLoopCount()) {
+            throw new IllegalArgumentException("no event loop " + index);
+        }
+        eventLoopAffinity = index;
+    }
+
     /**
      *
      * @return the name of this audio stream/clip
@@ -483,10 +752,37 @@ abstract class PulseAudioDataLine extends PulseAudioLine implements DataLine {
         return streamName;
     }
 
+    /**
+     * Fills timing with a snapshot of the line's timing: the stream time, the
+     * latency, the read and write indices, whether the stream is playing and
+     * when the server last reported these, at the TIMING_ indices. Everything
+     * comes from one native call and nothing is allocated, so this is cheap
+     * enough to poll. PulseAudio refreshes the values on its own while the
+     * line is open.
+     *
+     * @param timing
+     *            an array of at least {@link #TIMING_INFO_SIZE} elements
+     * @return false if the line is closed or no timing is known yet
+     */
+    public boolean getTimingInfo(long[] timing) {
+        if (!isOpen()) {
+            return false;
+        }
+        eventLoop.lock();
+        try {
+            return stream.getTimingInfo(timing);
+        } finally {
+            eventLoop.unlock();
+        }
+    }
+
     public int getBytesInBuffer() {
         Operation o;
-        synchronized (eventLoop.threadLock) {
+        eventLoop.lock();
+        try {
             o = stream.updateTimingInfo();
+        } finally {
+            eventLoop.unlock();
         }
         o.waitForCompletion();
         o.releaseReference();
@@ -39,6 +39,7 @@ package org.classpath.icedtea.pulseaudio;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import javax.sound.sampled.Control;
 import javax.sound.sampled.Line;
@@ -48,9 +49,13 @@ import javax.sound.sampled.Control.Type;
 
 abstract class PulseAudioLine implements Line {
 
-    protected List<LineListener> lineListeners = new ArrayList<LineListener>();
+    protected final ListenerList<LineListener> lineListeners = new ListenerList<LineListener>(
+            new LineListener[0]);
     protected List<Control> controls = new ArrayList<Control>();
 
+    // delivers this line's events away from the event loop thread
+    private final EventDispatcher eventDispatcher = new EventDispatcher();
+
     // true between open() and close(). ie represents when a line has acquire
     // resources
     protected boolean isOpen = false;
@@ -71,9 +76,38 @@ abstract class PulseAudioLine implements Line {
         isOpen = false;
     }
 
-    protected void fireLineEvent(LineEvent e) {
-        for (LineListener lineListener : lineListeners) {
-            lineListener.update(e);
+    /*
+     * Notifies the listeners registered now of e, in order with the other
+     * events of this line. The listeners run on the executor set with
+     * PulseAudioMixer.setEventExecutor()
+     */
+    protected void fireLineEvent(final LineEvent e) {
+        final LineListener[] listeners = lineListeners.get();
+        eventDispatcher.dispatch(() -> {
+            for (LineListener lineListener : listeners) {
+                lineListener.update(e);
+            }
+        });
+    }
+
+    /*
+     * Waits until the listeners have been told of every event fired so far.
+     * open() and close() do not wait for them, so only tests need this
+     */
+    void waitForEvents() {
+        CountDownLatch delivered = new CountDownLatch(1);
+        eventDispatcher.dispatch(delivered::countDown);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                delivered.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 
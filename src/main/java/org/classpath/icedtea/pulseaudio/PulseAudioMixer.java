@@ -44,6 +44,7 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Semaphore;
 
 import javax.sound.sampled.AudioFormat;
@@ -68,7 +69,8 @@ import org.classpath.icedtea.pulseaudio.Debug.DebugLevel;
 public final class PulseAudioMixer implements Mixer {
     // singleton
 
-    private Thread eventLoopThread;
+    // one per event loop, in the order of their indices
+    private Thread[] eventLoopThreads;
 
     private List<Line.Info> sourceLineInfos = new ArrayList<Line.Info>();
     private List<Line.Info> staticSourceLineInfos = new ArrayList<Line.Info>();
@@ -86,7 +88,9 @@ public final class PulseAudioMixer implements Mixer {
     private final List<PulseAudioLine> sourceLines = new ArrayList<PulseAudioLine>();
     private final List<PulseAudioLine> targetLines = new ArrayList<PulseAudioLine>();
 
-    private final List<LineListener> lineListeners = new ArrayList<LineListener>();
+    private final ListenerList<LineListener> lineListeners = new ListenerList<LineListener>(
+            new LineListener[0]);
+    private final EventDispatcher eventDispatcher = new EventDispatcher();
 
     private PulseAudioMixer() {
 
@@ -120,6 +124,23 @@ public final class PulseAudioMixer implements Mixer {
         return _instance;
     }
 
+    /**
+     * Sets the executor that LineListeners of the mixer and of its lines are
+     * notified on. The events of any one line or of the mixer are still
+     * delivered one at a time and in order. Listeners never run on the thread
+     * that talks to PulseAudio, so a slow listener can not hold up playback,
+     * and opening or closing a line does not wait for them. With an executor
+     * that runs one task at a time, a listener must not wait for the events
+     * of another line, since those can only run after it.
+     *
+     * @param executor
+     *            the executor to use, or null for the default pool of daemon
+     *            threads
+     */
+    public static void setEventExecutor(Executor executor) {
+        EventDispatcher.setExecutor(executor);
+    }
+
     private AudioFormat[] getSupportedFormats() {
 
         List<AudioFormat> supportedFormats = new ArrayList<AudioFormat>();
@@ -523,14 +544,10 @@ public final class PulseAudioMixer implements Mixer {
             }
         }
 
-        synchronized (lineListeners) {
-            lineListeners.clear();
-        }
-
-        eventLoopThread.interrupt();
+        lineListeners.clear();
 
         try {
-            eventLoopThread.join();
+            stopEventLoops();
         } catch (InterruptedException e) {
             System.out.println(this.getClass().getName()
                     + ": interrupted while waiting for eventloop to finish");
@@ -635,6 +652,77 @@ public final class PulseAudioMixer implements Mixer {
 
     }
 
+    /**
+     * Opens many source or target data lines at once. The streams of all the
+     * lines are created and connected before waiting for any of them to become
+     * ready, so that this takes about one round trip to the server instead of
+     * one per line.
+     *
+     * If a line can not be opened, the lines this call did open are closed
+     * again and the first exception is thrown.
+     *
+     * @param format
+     *            the format to open all the lines with
+     * @param bufferSize
+     *            the buffer size, in bytes, to open all the lines with
+     * @param lines
+     *            SourceDataLines and TargetDataLines from this mixer
+     * @throws LineUnavailableException
+     */
+    public void openLines(AudioFormat format, int bufferSize,
+            DataLine... lines) throws LineUnavailableException {
+        PulseAudioDataLine[] dataLines = new PulseAudioDataLine[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            if (!(lines[i] instanceof PulseAudioSourceDataLine)
+                    && !(lines[i] instanceof PulseAudioTargetDataLine)) {
+                throw new IllegalArgumentException(
+                        "not a SourceDataLine or TargetDataLine of this mixer: "
+                                + lines[i]);
+            }
+            dataLines[i] = (PulseAudioDataLine) lines[i];
+        }
+
+        Exception failure = null;
+        int begun = 0;
+        try {
+            for (PulseAudioDataLine line : dataLines) {
+                synchronized (line) {
+                    line.beginOpen(format, bufferSize);
+                }
+                begun++;
+            }
+        } catch (LineUnavailableException | RuntimeException e) {
+            failure = e;
+        }
+
+        // the server's replies to all of these are on their way by now
+        boolean[] opened = new boolean[begun];
+        for (int i = 0; i < begun; i++) {
+            try {
+                synchronized (dataLines[i]) {
+                    dataLines[i].finishOpen();
+                }
+                opened[i] = true;
+            } catch (LineUnavailableException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+
+        if (failure != null) {
+            for (int i = 0; i < begun; i++) {
+                if (opened[i]) {
+                    dataLines[i].close();
+                }
+            }
+            if (failure instanceof LineUnavailableException) {
+                throw (LineUnavailableException) failure;
+            }
+            throw (RuntimeException) failure;
+        }
+    }
+
     /*
      *
      * @param appName name of the application
@@ -652,8 +740,6 @@ public final class PulseAudioMixer implements Mixer {
 
         EventLoop eventLoop;
         eventLoop = EventLoop.getEventLoop();
-        eventLoop.setAppName(appName);
-        eventLoop.setServer(hostAndIp);
 
         ContextListener generalEventListener = new ContextListener() {
             @Override
@@ -671,49 +757,67 @@ public final class PulseAudioMixer implements Mixer {
 
         eventLoop.addContextListener(generalEventListener);
 
-        final Semaphore ready = new Semaphore(0);
-
-        ContextListener initListener = new ContextListener() {
-
-            @Override
-            public void update(ContextEvent e) {
-                if (e.getType() == ContextEvent.READY
-                        || e.getType() == ContextEvent.FAILED
-                        || e.getType() == ContextEvent.TERMINATED) {
-                    ready.release();
+        int eventLoopCount = EventLoop.getEventLoopCount();
+        eventLoopThreads = new Thread[eventLoopCount];
+        Semaphore[] ready = new Semaphore[eventLoopCount];
+        ContextListener[] initListeners = new ContextListener[eventLoopCount];
+
+        for (int i = 0; i < eventLoopCount; i++) {
+            EventLoop loop = EventLoop.getEventLoop(i);
+            loop.setAppName(appName);
+            loop.setServer(hostAndIp);
+
+            final Semaphore loopReady = new Semaphore(0);
+            ready[i] = loopReady;
+            initListeners[i] = new ContextListener() {
+
+                @Override
+                public void update(ContextEvent e) {
+                    if (e.getType() == ContextEvent.READY
+                            || e.getType() == ContextEvent.FAILED
+                            || e.getType() == ContextEvent.TERMINATED) {
+                        loopReady.release();
+                    }
                 }
-            }
-
-        };
 
-        eventLoop.addContextListener(initListener);
+            };
+            loop.addContextListener(initListeners[i]);
 
-        eventLoopThread = new Thread(eventLoop, "PulseAudio Eventloop Thread");
+            String threadName = "PulseAudio Eventloop Thread";
+            if (i > 0) {
+                threadName += " " + i;
+            }
+            eventLoopThreads[i] = new Thread(loop, threadName);
 
-        /*
-         * Make the thread exit if by some weird error it is the only thread
-         * running. The application should be able to exit if the main thread
-         * doesn't or can't (perhaps an assert?) do a mixer.close().
-         */
-        eventLoopThread.setDaemon(true);
-        eventLoopThread.start();
+            /*
+             * Make the thread exit if by some weird error it is the only thread
+             * running. The application should be able to exit if the main
+             * thread doesn't or can't (perhaps an assert?) do a mixer.close().
+             */
+            eventLoopThreads[i].setDaemon(true);
+            eventLoopThreads[i].start();
+        }
 
         try {
             // System.out.println("waiting...");
-            ready.acquire();
-            if (eventLoop.getStatus() != ContextEvent.READY) {
+            boolean allReady = true;
+            for (int i = 0; i < eventLoopCount; i++) {
+                EventLoop loop = EventLoop.getEventLoop(i);
+                ready[i].acquire();
+                loop.removeContextListener(initListeners[i]);
+                if (loop.getStatus() != ContextEvent.READY) {
+                    allReady = false;
+                }
+            }
+            if (!allReady) {
                 /*
-                 * when exiting, wait for the thread to end otherwise we get one
-                 * thread that inits the singleton with new data and the old
-                 * thread then cleans up the singleton asserts fail all over the
-                 * place
+                 * when exiting, wait for the threads to end otherwise we get
+                 * one thread that inits an event loop with new data and the old
+                 * thread then cleans it up and asserts fail all over the place
                  */
-                eventLoop.removeContextListener(initListener);
-                eventLoopThread.interrupt();
-                eventLoopThread.join();
+                stopEventLoops();
                 throw new LineUnavailableException();
             }
-            eventLoop.removeContextListener(initListener);
             // System.out.println("got signal");
         } catch (InterruptedException e) {
             System.out.println("PulseAudioMixer: got interrupted while waiting for the EventLoop to initialize");
@@ -741,25 +845,36 @@ public final class PulseAudioMixer implements Mixer {
 
     }
 
+    /*
+     * Interrupts the threads of all the event loops and waits for them to
+     * shut their loops down
+     */
+    private void stopEventLoops() throws InterruptedException {
+        for (int i = 0; i < eventLoopThreads.length; i++) {
+            eventLoopThreads[i].interrupt();
+            EventLoop.getEventLoop(i).wakeup();
+        }
+        for (Thread thread : eventLoopThreads) {
+            thread.join();
+        }
+    }
+
     @Override
     public void removeLineListener(LineListener listener) {
         lineListeners.remove(listener);
     }
 
     /*
-     * Should this method be synchronized? I had a few reasons, but i forgot
-     * them Pros: - Thread safety?
-     *
-     * Cons: - eventListeners are run from other threads, if those then call
-     * fireEvent while a method is waiting on a listener, this synchronized
-     * block wont be entered: deadlock!
+     * The listeners run later, on the event executor, so a listener calling
+     * back into the mixer can not deadlock against the thread firing the event
      */
     private void fireEvent(final LineEvent e) {
-        synchronized (lineListeners) {
-            for (LineListener lineListener : lineListeners) {
+        final LineListener[] listeners = lineListeners.get();
+        eventDispatcher.dispatch(() -> {
+            for (LineListener lineListener : listeners) {
                 lineListener.update(e);
             }
-        }
+        });
     }
 
     void addSourceLine(PulseAudioLine line) {
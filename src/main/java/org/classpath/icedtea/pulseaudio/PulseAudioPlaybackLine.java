@@ -50,7 +50,7 @@ interface PulseAudioPlaybackLine {
      * @return an Operation object which can be used to check if the operation
      *         has completed
      */
-    byte[] native_set_volume(float value);
+    long native_set_volume(float value);
 
     /**
      *
@@ -59,7 +59,7 @@ interface PulseAudioPlaybackLine {
      * @return an Operation object which can be used to check if the operation
      *         has been completed
      */
-    byte[] native_update_volume();
+    long native_update_volume();
 
 
     /**
@@ -51,7 +51,7 @@ abstract class PulseAudioPort extends PulseAudioLine implements Port,
      * Variable used in native code
      */
     @SuppressWarnings("unused")
-    private byte[] contextPointer;
+    private long contextPointer;
     @SuppressWarnings("unused")
     private int channels;
 
@@ -87,14 +87,14 @@ abstract class PulseAudioPort extends PulseAudioLine implements Port,
 
     // FIXME why public
     @Override
-    public abstract byte[] native_set_volume(float newValue);
+    public abstract long native_set_volume(float newValue);
 
     /**
      *
      * @see {@link update_channels_and_volume}
      */
     // FIXME why public
-    public abstract byte[] native_update_volume();
+    public abstract long native_update_volume();
 
     @Override
     public float getCachedVolume() {
@@ -109,8 +109,11 @@ abstract class PulseAudioPort extends PulseAudioLine implements Port,
 
     private void updateVolumeInfo() {
         Operation op;
-        synchronized (eventLoop.threadLock) {
-            op = new Operation(native_update_volume());
+        eventLoop.lock();
+        try {
+            op = new Operation(native_update_volume(), eventLoop);
+        } finally {
+            eventLoop.unlock();
         }
 
         op.waitForCompletion();
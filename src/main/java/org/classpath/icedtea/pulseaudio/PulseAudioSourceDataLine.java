@@ -37,12 +37,15 @@ exception statement from your version.
 
 package org.classpath.icedtea.pulseaudio;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.DataLine;
 import javax.sound.sampled.Line;
-import javax.sound.sampled.LineListener;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.SourceDataLine;
 
@@ -53,15 +56,106 @@ public final class PulseAudioSourceDataLine extends PulseAudioDataLine
 
     private PulseAudioVolumeControl volumeControl;
 
+    /*
+     * the buffer handed out by beginWrite(), until it is given back by
+     * commitWrite() or cancelWrite(), or the line is closed
+     */
+    private volatile ByteBuffer borrowedBuffer;
+
+    /*
+     * the memory beginWrite() lends out. It is the line's own, so nothing an
+     * application does with a buffer over it after giving it back can reach
+     * memory that belongs to PulseAudio; see lend()
+     */
+    private ByteBuffer stagingBuffer;
+
+    /*
+     * write() copies arrays into this ring, and the stream is filled from it
+     * when PulseAudio asks for data, in the write callback. Direct buffers do
+     * not go through it; PulseAudio reads them itself. The writing thread is
+     * the ring's producer; the consumer is whoever holds the event loop lock.
+     * See lineOpened() for its size. close() sets it to null, with the event
+     * loop lock held, before the stream is freed, so nothing calls into the
+     * stream once it finds no ring.
+     */
+    private volatile ByteRing ring;
+
+    // the ring takes one producer at a time
+    private final ReentrantLock producerLock = new ReentrantLock();
+
+    // the thread parked until pump() has taken data out of the ring
+    private volatile Thread waitingWriter;
+
+    /*
+     * set when pump() emptied the ring while the stream could take more. No
+     * write callback is coming then, so the writer has to pump itself
+     */
+    private volatile boolean starved = true;
+
+    /*
+     * what drainAsync() waits on until the ring is empty; only used with the
+     * event loop lock held
+     */
+    private CompletableFuture<Void> ringEmptied;
+
+    /*
+     * when set, the audio comes from this instead of write()
+     */
+    private volatile RenderCallback renderCallback;
+
+    /*
+     * adaptive buffering, see setAdaptiveBuffering(). The target lengths are
+     * in bytes and, like the time of the last change, are only used with the
+     * event loop lock held
+     */
+    private volatile boolean adaptiveBuffering = false;
+    private int minimumTargetLength;
+    private int maximumTargetLength;
+    private int targetLength;
+    private long lastBufferChange;
+
+    // how long the line has to play without underflows before the buffer
+    // shrinks again
+    private static final long STABLE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    // how far the buffer can grow beyond its size at open time
+    private static final int MAXIMUM_GROWTH = 8;
+
     public static final String DEFAULT_SOURCEDATALINE_NAME = "Audio Stream";
 
+    /**
+     * Produces the audio of a line that pulls its data, see
+     * {@link PulseAudioSourceDataLine#setRenderCallback(RenderCallback)}.
+     */
+    public interface RenderCallback {
+        /**
+         * Fills buffer with the next audio to play. This is called on the
+         * event loop thread whenever PulseAudio asks for more data, so it
+         * must not block, and must not call methods of the line that wait for
+         * the server.
+         *
+         * @param buffer
+         *            a direct buffer of the size PulseAudio asked for, a whole
+         *            number of frames. It is copied into the server's memory
+         *            once this returns, and must not be kept: its memory is
+         *            handed out again the next time the callback is called.
+         *            Anything this throws stops the rendering until PulseAudio
+         *            asks for data again.
+         * @return the number of bytes put at the start of buffer, a whole
+         *         number of frames. Returning less than the size of buffer
+         *         means there is nothing more to play for now; the callback
+         *         is called again the next time PulseAudio asks for data, or
+         *         when the line runs out of data.
+         */
+        int render(ByteBuffer buffer);
+    }
+
     /*
      * Package-private constructor only called by PulseAudioMixer
      */
     PulseAudioSourceDataLine(AudioFormat[] formats, AudioFormat defaultFormat) {
 
         this.supportedFormats = formats;
-        this.lineListeners = new ArrayList<LineListener>();
         this.defaultFormat = defaultFormat;
         this.currentFormat = defaultFormat;
         this.streamName = DEFAULT_SOURCEDATALINE_NAME;
@@ -73,6 +167,45 @@ public final class PulseAudioSourceDataLine extends PulseAudioDataLine
             throws LineUnavailableException {
 
         super.open(format, bufferSize);
+    }
+
+    @Override
+    protected void lineOpened() {
+        int frameSize = currentFormat.getFrameSize();
+        eventLoop.lock();
+        try {
+            StreamBufferAttributes attributes = stream.getBufferAttributes();
+            targetLength = attributes.getTargetLength();
+            minimumTargetLength = targetLength;
+            maximumTargetLength = Math.max(targetLength, Math.min(
+                    attributes.getMaxLength(), targetLength * MAXIMUM_GROWTH));
+            lastBufferChange = System.nanoTime();
+
+            /*
+             * The ring and the server's buffer together hold no more than the
+             * line was opened for: the buffer size, which is the server's
+             * maxlength, or the latency, which the server's buffer already
+             * takes up. A line opened for a latency only keeps one request
+             * ahead of the server.
+             */
+            int ringSize;
+            if (requestedLatency > 0) {
+                ringSize = attributes.getMinimumRequest();
+            } else {
+                ringSize = attributes.getMaxLength() - targetLength;
+            }
+            ring = new ByteRing(Math.max(frameSize, ringSize - ringSize
+                    % frameSize));
+            starved = true;
+            stream.addWriteListener(this::pump);
+            stream.addWriteListener(this::shrinkBufferIfStable);
+            stream.addUnderflowListener(this::growBuffer);
+            stream.addUnderflowListener(this::pump);
+            // fill the stream in case it asked for data before this
+            pump();
+        } finally {
+            eventLoop.unlock();
+        }
 
         volumeControl = new PulseAudioVolumeControl(this, eventLoop);
         controls.add(volumeControl);
@@ -91,15 +224,21 @@ public final class PulseAudioSourceDataLine extends PulseAudioDataLine
     }
 
     // FIXME
-    public byte[] native_set_volume(float value) {
-        synchronized (eventLoop.threadLock) {
+    public long native_set_volume(float value) {
+        eventLoop.lock();
+        try {
             return stream.native_set_volume(value);
+        } finally {
+            eventLoop.unlock();
         }
     }
 
-    public byte[] native_update_volume() {
-        synchronized (eventLoop.threadLock) {
+    public long native_update_volume() {
+        eventLoop.lock();
+        try {
             return stream.native_update_volume();
+        } finally {
+            eventLoop.unlock();
         }
     }
 
@@ -113,26 +252,105 @@ public final class PulseAudioSourceDataLine extends PulseAudioDataLine
         stream.setCachedVolume(value);
     }
 
+    /**
+     * Sets the volume the way the line's volume control does, without
+     * waiting for the server to apply it.
+     *
+     * @return a future completed once the volume has been set
+     */
+    public CompletableFuture<Void> setVolumeAsync(float value) {
+        return volumeControl.setValueAsync(value);
+    }
+
+    /**
+     * Opens the line with its buffer sized for the given latency instead of
+     * for a buffer size. The server is asked to adjust its own latency so that
+     * data written to the line is heard about that long afterwards;
+     * {@link #getGrantedLatency()} tells what it made of the request.
+     *
+     * @param format
+     *            the format to open the line with
+     * @param latency
+     *            the latency wanted, in microseconds
+     * @throws LineUnavailableException
+     */
+    synchronized public void openWithLatency(AudioFormat format, long latency)
+            throws LineUnavailableException {
+        if (latency <= 0) {
+            throw new IllegalArgumentException("invalid latency: " + latency);
+        }
+        requestedLatency = latency;
+        try {
+            open(format, DEFAULT_BUFFER_SIZE);
+        } finally {
+            requestedLatency = 0;
+        }
+    }
+
+    /**
+     * @return the latency of the playback buffer the server granted, in
+     *         microseconds, or 0 if the line is not open. After
+     *         {@link #openWithLatency(AudioFormat, long)} the server makes up
+     *         the rest of the latency asked for with the latency of the
+     *         device.
+     */
+    public long getGrantedLatency() {
+        if (!isOpen()) {
+            return 0;
+        }
+        StreamBufferAttributes attributes;
+        eventLoop.lock();
+        try {
+            attributes = stream.getBufferAttributes();
+        } finally {
+            eventLoop.unlock();
+        }
+        return bytesToLatency(attributes.getTargetLength());
+    }
+
     @Override
     protected void connectLine(int bufferSize, Stream masterStream)
             throws LineUnavailableException {
-        StreamBufferAttributes bufferAttributes =
-            new StreamBufferAttributes(
+        long flags = Stream.FLAG_START_CORKED | Stream.FLAG_AUTO_TIMING_UPDATE
+                | Stream.FLAG_INTERPOLATE_TIMING;
+        StreamBufferAttributes bufferAttributes;
+        if (requestedLatency > 0) {
+            /*
+             * With ADJUST_LATENCY the server takes tlength as the latency
+             * from writing to playing, and splits it between the buffer and
+             * the device. It picks maxlength and prebuf itself
+             */
+            flags |= Stream.FLAG_ADJUST_LATENCY;
+            int frameSize = currentFormat.getFrameSize();
+            int targetLength = latencyToBytes(requestedLatency);
+            int minimumRequest = Math.max(frameSize, targetLength / 4
+                    - (targetLength / 4) % frameSize);
+            bufferAttributes = new StreamBufferAttributes(-1, targetLength,
+                    -1, minimumRequest, -1);
+        } else {
+            bufferAttributes = new StreamBufferAttributes(
                     bufferSize,
                     bufferSize / 4,
                     bufferSize / 8,
                     Math.max(bufferSize / 10, 100),
                     0);
+        }
 
         if (masterStream != null) {
-            synchronized (eventLoop.threadLock) {
-                stream.connectForPlayback(Stream.DEFAULT_DEVICE,
+            eventLoop.lock();
+            try {
+                stream.connectForPlayback(Stream.DEFAULT_DEVICE, flags,
                         bufferAttributes, masterStream.getStreamPointer());
+            } finally {
+                eventLoop.unlock();
             }
         } else {
-            synchronized (eventLoop.threadLock) {
-                stream.connectForPlayback(Stream.DEFAULT_DEVICE,
-                        bufferAttributes, null);
+            eventLoop.lock();
+            try {
+                stream.connectForPlayback(Stream.DEFAULT_DEVICE, flags,
+                        bufferAttributes, 0);
+            } finally {
+                eventLoop.unlock();
             }
         }
     }
@@ -166,99 +384,695 @@ public final class PulseAudioSourceDataLine extends PulseAudioDataLine
                             " offset= " + offset + " length=" + length );
         }
 
-        int position = offset;
-        int remainingLength = length;
-        int availableSize = 0;
+        return writeFrames(data, offset, length);
+    }
 
-        int sizeWritten = 0;
+    /**
+     * Writes the remaining bytes of a buffer to the line, blocking like
+     * {@link #write(byte[], int, int)} until all of them have been written or
+     * the line is stopped, flushed or closed.
+     *
+     * A direct buffer is handed to PulseAudio as is, without being copied into
+     * a java array first. Other buffers go through the array based write.
+     *
+     * @param data
+     *            the data to write; its position is advanced by the number of
+     *            bytes written
+     * @return the number of bytes written
+     */
+    public int write(ByteBuffer data) {
+        synchronized (this) {
+            writeInterrupted = false;
+        }
 
-        boolean interrupted = false;
+        if (!isOpen()) {
+            // A closed line can write exactly 0 bytes.
+            return 0;
+        }
+
+        int length = data.remaining();
+        int frameSize = currentFormat.getFrameSize();
+        if (length % frameSize != 0) {
+            throw new IllegalArgumentException(
+                    "amount of data to write does not represent an integral number of frames");
+        }
+
+        int sizeWritten;
+        if (data.isDirect()) {
+            sizeWritten = writeDirect(data, data.position(), length);
+        } else if (data.hasArray()) {
+            sizeWritten = writeFrames(data.array(),
+                    data.arrayOffset() + data.position(), length);
+        } else {
+            // a read-only heap buffer; we cant get at its array
+            byte[] copy = new byte[length];
+            data.duplicate().get(copy);
+            sizeWritten = writeFrames(copy, 0, length);
+        }
+
+        data.position(data.position() + sizeWritten);
+        return sizeWritten;
+    }
+
+    /**
+     * Borrows a buffer to put up to length bytes of audio in. Fill it, then
+     * hand it back with {@link #commitWrite(int)}, which copies what was put
+     * in it straight into PulseAudio's memory, or give it back unused with
+     * {@link #cancelWrite()}; closing the line takes it back too. Only one
+     * buffer can be borrowed at a time. The buffer is as large as PulseAudio
+     * takes right away, so that filling it does not block the server.
+     *
+     * This blocks until at least one frame can be written, or the line is
+     * stopped, flushed or closed.
+     *
+     * @param length
+     *            the maximum number of bytes wanted; an integral number of
+     *            frames
+     * @return a direct buffer holding a whole number of frames, at most length
+     *         bytes; empty if the line was stopped, flushed or closed
+     */
+    public ByteBuffer beginWrite(int length) {
+        synchronized (this) {
+            writeInterrupted = false;
+            if (borrowedBuffer != null) {
+                throw new IllegalStateException("a buffer is already borrowed");
+            }
+            if (renderCallback != null) {
+                throw new IllegalStateException(
+                        "the line plays from a render callback");
+            }
+        }
+
+        if (!isOpen() || length == 0) {
+            return ByteBuffer.allocate(0);
+        }
 
-        while (remainingLength != 0) {
+        int frameSize = currentFormat.getFrameSize();
+        if (length % frameSize != 0) {
+            throw new IllegalArgumentException(
+                    "amount of data to write does not represent an integral number of frames");
+        }
 
-            synchronized (eventLoop.threadLock) {
+        if (length < 0) {
+            throw new IllegalArgumentException("length is negative");
+        }
 
-                do {
-                    synchronized (this) {
-                        if (writeInterrupted) {
-                            return sizeWritten;
+        ByteBuffer buffer = null;
+        boolean interrupted = false;
+
+        while (buffer == null) {
+            eventLoop.lock();
+            try {
+                /* what was written before has to go first */
+                pump();
+                synchronized (this) {
+                    if (writeInterrupted || !isOpen() || ring == null) {
+                        break;
+                    }
+                    if (ring.size() == 0) {
+                        int writable = stream.getWritableSize();
+                        if (writable < 0) {
+                            break;
+                        }
+                        int size = Math.min(length, writable);
+                        size -= size % frameSize;
+                        if (size > 0) {
+                            buffer = lend(size);
+                            borrowedBuffer = buffer;
                         }
                     }
+                }
 
-                    if (availableSize == -1) {
-                        return sizeWritten;
+                if (buffer == null) {
+                    try {
+                        eventLoop.await(dataCondition, 100);
+                    } catch (InterruptedException e) {
+                        // ignore for now
+                        interrupted = true;
                     }
-                    availableSize = stream.getWritableSize();
+                }
+            } finally {
+                eventLoop.unlock();
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (buffer == null) {
+            return ByteBuffer.allocate(0);
+        }
+        return buffer;
+    }
+
+    /**
+     * Writes the first length bytes of the buffer borrowed with
+     * {@link #beginWrite(int)} to the line. The buffer must not be used
+     * afterwards: its memory is lent out again by the next beginWrite().
+     *
+     * @param length
+     *            the number of bytes filled in; an integral number of frames
+     *            no larger than the buffer
+     * @return the number of bytes written
+     */
+    public int commitWrite(int length) {
+        int frameSize = currentFormat.getFrameSize();
+
+        eventLoop.lock();
+        try {
+            synchronized (this) {
+                if (borrowedBuffer == null) {
+                    throw new IllegalStateException("no buffer is borrowed");
+                }
+                if (length < 0 || length > borrowedBuffer.capacity()
+                        || length % frameSize != 0) {
+                    throw new IllegalArgumentException("invalid length: "
+                            + length);
+                }
+                ByteBuffer source = borrowedBuffer.duplicate();
+                borrowedBuffer = null;
+
+                if (!isOpen() || ring == null || length == 0) {
+                    return 0;
+                }
+                source.clear();
+                source.limit(length);
+                return copyToStream(source);
+            }
+        } finally {
+            eventLoop.unlock();
+        }
+    }
+
+    /**
+     * Gives back the buffer borrowed with {@link #beginWrite(int)} without
+     * writing any of it. As after {@link #commitWrite(int)}, the buffer must
+     * not be used afterwards. Does nothing if no buffer is borrowed.
+     */
+    public synchronized void cancelWrite() {
+        borrowedBuffer = null;
+    }
+
+    /*
+     * Returns a buffer over size bytes of the line's own memory, for audio on
+     * its way to the stream. Only one such buffer is in use at a time, and the
+     * event loop lock must be held
+     */
+    private ByteBuffer lend(int size) {
+        if (stagingBuffer == null || stagingBuffer.capacity() < size) {
+            stagingBuffer = ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer buffer = stagingBuffer.duplicate();
+        buffer.limit(size);
+        return buffer.slice();
+    }
+
+    /*
+     * Copies the remaining bytes of source, a whole number of frames, into
+     * memory borrowed from the stream and writes them. The memory is only
+     * touched here, with the event loop lock held, since the stream lets go
+     * of it from the event loop if it fails.
+     *
+     * @return the number of bytes written
+     */
+    private int copyToStream(ByteBuffer source) {
+        int frameSize = currentFormat.getFrameSize();
+        int written = 0;
+        while (source.hasRemaining()) {
+            ByteBuffer target;
+            try {
+                target = stream.beginWrite(source.remaining(), frameSize);
+            } catch (IllegalStateException e) {
+                // the stream is going away
+                break;
+            }
+            if (target == null) {
+                // full; should not happen to what beginWrite() lent out
+                break;
+            }
+            int length = target.capacity();
+            ByteBuffer chunk = source.duplicate();
+            chunk.limit(chunk.position() + length);
+            target.put(chunk);
+            if (stream.commitWrite(length) < 0) {
+                break;
+            }
+            source.position(source.position() + length);
+            written += length;
+            framesSinceOpen += length / frameSize;
+        }
+        return written;
+    }
+
+    /*
+     * Writes length bytes of data starting at offset
+     *
+     * The data is only copied into the ring, without the event loop lock, so
+     * the writing thread does not contend with the event loop. The event loop
+     * sends it on from the stream's write callback. Only if the ring ran dry
+     * before PulseAudio had all it asked for does the writing thread send the
+     * data on itself, since no callback is coming then.
+     */
+    private int writeFrames(byte[] data, int offset, int length) {
+
+        int frameSize = currentFormat.getFrameSize();
+        int position = offset;
+        int sizeWritten = 0;
+
+        boolean interrupted = false;
+
+        producerLock.lock();
+        try {
+            while (sizeWritten < length) {
+                ByteRing ring = this.ring;
+                if (writeInterrupted || ring == null || !isOpen()) {
+                    break;
+                }
+                if (borrowedBuffer != null) {
+                    throw new IllegalStateException(
+                            "a buffer is borrowed with beginWrite()");
+                }
+                if (renderCallback != null) {
+                    throw new IllegalStateException(
+                            "the line plays from a render callback");
+                }
+
+                int bytesWritten = Math.min(length - sizeWritten, ring.free());
+                bytesWritten -= bytesWritten % frameSize;
+                if (bytesWritten == 0) {
+                    /* wait for the event loop to make room */
+                    waitingWriter = Thread.currentThread();
+                    if (ring.free() < frameSize && !writeInterrupted) {
+                        LockSupport.parkNanos(this,
+                                TimeUnit.MILLISECONDS.toNanos(100));
+                    }
+                    waitingWriter = null;
+                    if (Thread.interrupted()) {
+                        // ignore for now
+                        interrupted = true;
+                    }
+                    continue;
+                }
+
+                ring.write(data, position, bytesWritten);
+                sizeWritten += bytesWritten;
+                position += bytesWritten;
+
+                if (starved && !writeInterrupted) {
+                    eventLoop.lock();
+                    try {
+                        pump();
+                    } finally {
+                        eventLoop.unlock();
+                    }
+                }
+            }
+        } finally {
+            producerLock.unlock();
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        return sizeWritten;
+    }
+
+    /*
+     * Writes length bytes of the direct buffer data starting at offset
+     *
+     * PulseAudio reads the data from the buffer itself, so it does not go
+     * through the ring. Whatever is still in the ring was written before and
+     * is sent first.
+     */
+    private int writeDirect(ByteBuffer data, int offset, int length) {
+
+        int frameSize = currentFormat.getFrameSize();
+        int position = offset;
+        int sizeWritten = 0;
+
+        boolean interrupted = false;
+
+        producerLock.lock();
+        try {
+            while (sizeWritten < length) {
+                if (borrowedBuffer != null) {
+                    throw new IllegalStateException(
+                            "a buffer is borrowed with beginWrite()");
+                }
+                if (renderCallback != null) {
+                    throw new IllegalStateException(
+                            "the line plays from a render callback");
+                }
 
-                    if (availableSize == 0) {
+                eventLoop.lock();
+                try {
+                    if (writeInterrupted || !isOpen() || ring == null) {
+                        break;
+                    }
+                    pump();
+
+                    int bytesWritten = 0;
+                    if (ring.size() == 0) {
+                        bytesWritten = stream.writeAvailable(data, position,
+                                length - sizeWritten, frameSize);
+                        if (bytesWritten < 0) {
+                            break;
+                        }
+                    }
+                    if (bytesWritten == 0) {
                         try {
-                            eventLoop.threadLock.wait(100);
+                            eventLoop.await(dataCondition, 100);
                         } catch (InterruptedException e) {
                             // ignore for now
                             interrupted = true;
                         }
-
+                        continue;
                     }
 
-                } while (availableSize == 0);
-
-                if (availableSize > remainingLength) {
-                    availableSize = remainingLength;
+                    sizeWritten += bytesWritten;
+                    position += bytesWritten;
+                    framesSinceOpen += bytesWritten / frameSize;
+                } finally {
+                    eventLoop.unlock();
                 }
+            }
+        } finally {
+            producerLock.unlock();
+        }
 
-                // only write entire frames, so round down avialableSize to
-                // a multiple of frameSize
-                availableSize = (availableSize / frameSize) * frameSize;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
 
-                synchronized (this) {
-                    if (writeInterrupted) {
-                        return sizeWritten;
-                    }
-                    /* write a little bit of the buffer */
-                    stream.write(data, position, availableSize);
+        return sizeWritten;
+    }
+
+    /*
+     * Moves as much data from the ring to the stream as the stream takes. This
+     * is the consumer side of the ring, so the event loop lock must be held.
+     */
+    private void pump() {
+        ByteRing ring = this.ring;
+        if (ring == null || borrowedBuffer != null || !isOpen()) {
+            return;
+        }
+
+        RenderCallback callback = renderCallback;
+        if (callback != null) {
+            render(callback);
+            return;
+        }
+
+        int frameSize = currentFormat.getFrameSize();
+        while (true) {
+            int size = ring.size();
+            if (size == 0) {
+                /*
+                 * say so before looking again, so that a writer either sees
+                 * the flag or has its data seen here
+                 */
+                starved = true;
+                if (ring.size() == 0) {
+                    break;
                 }
+                continue;
+            }
+            starved = false;
+
+            ByteBuffer buffer;
+            try {
+                buffer = stream.beginWrite(size, frameSize);
+            } catch (IllegalStateException e) {
+                // the stream is going away
+                break;
+            }
+            if (buffer == null) {
+                // full; the write callback comes once there is room again
+                break;
+            }
+            int length = ring.read(buffer);
+            if (stream.commitWrite(length) < 0) {
+                break;
+            }
+            framesSinceOpen += length / frameSize;
+        }
 
-                sizeWritten += availableSize;
-                position += availableSize;
-                remainingLength -= availableSize;
+        if (ring.size() == 0) {
+            signalRingEmptied();
+        }
+        wakeWriter();
+    }
 
-                framesSinceOpen += availableSize / frameSize;
+    /*
+     * Lets a drainAsync() waiting for the ring to empty go on. The event loop
+     * lock must be held
+     */
+    private void signalRingEmptied() {
+        CompletableFuture<Void> emptied = ringEmptied;
+        if (emptied != null) {
+            ringEmptied = null;
+            emptied.complete(null);
+        }
+    }
 
+    /*
+     * Lets callback fill the line's memory, and copies what it rendered into
+     * the stream, until the stream is full or the callback has nothing more.
+     * The event loop lock must be held.
+     */
+    private void render(RenderCallback callback) {
+        int frameSize = currentFormat.getFrameSize();
+
+        while (true) {
+            int size = stream.getWritableSize();
+            if (size < 0) {
+                return;
+            }
+            size -= size % frameSize;
+            if (size == 0) {
+                return;
+            }
+            ByteBuffer buffer = lend(size);
+
+            int length;
+            try {
+                length = callback.render(buffer);
+            } catch (Throwable t) {
+                // this runs in the native write callback; nothing may escape
+                Debug.println(DebugLevel.Warning,
+                        "PulseAudioSourceDataLine: render callback failed: "
+                                + t);
+                return;
+            }
+            length = Math.min(length, size);
+            length -= length % frameSize;
+            if (length <= 0) {
+                return;
+            }
+
+            ByteBuffer source = buffer.duplicate();
+            source.clear();
+            source.limit(length);
+            if (copyToStream(source) < length || length < size) {
+                return;
             }
         }
+    }
 
-        // all the data should have been played by now
-        assert (sizeWritten == length);
+    private void wakeWriter() {
+        Thread writer = waitingWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
 
-        if (interrupted) {
-            Thread.currentThread().interrupt();
+    /*
+     * Waits until everything in the ring has been sent to the server, as long
+     * as the line stays open and started
+     *
+     * @return false if the ring was not emptied
+     */
+    private boolean waitUntilPumped() {
+        producerLock.lock();
+        try {
+            while (true) {
+                ByteRing ring = this.ring;
+                if (ring == null || !isOpen()) {
+                    return false;
+                }
+                if (ring.size() == 0) {
+                    return true;
+                }
+                if (!isStarted) {
+                    return false;
+                }
+                waitingWriter = Thread.currentThread();
+                if (ring.size() > 0) {
+                    LockSupport.parkNanos(this,
+                            TimeUnit.MILLISECONDS.toNanos(100));
+                }
+                waitingWriter = null;
+                if (Thread.interrupted()) {
+                    return false;
+                }
+            }
+        } finally {
+            producerLock.unlock();
         }
+    }
 
-        return sizeWritten;
+    /**
+     * Makes the line pull its audio from callback instead of taking it from
+     * write(). The callback is handed PulseAudio's own memory to fill, on the
+     * event loop thread, as soon as PulseAudio asks for data, so the audio is
+     * produced just in time, without another thread or buffer in between.
+     * While a callback is set, write() and beginWrite() throw an
+     * IllegalStateException.
+     *
+     * @param callback
+     *            the callback to play from, or null to go back to write()
+     */
+    public void setRenderCallback(RenderCallback callback) {
+        renderCallback = callback;
+        if (!isOpen()) {
+            return;
+        }
+        eventLoop.lock();
+        try {
+            // PulseAudio may have asked for data already
+            pump();
+        } finally {
+            eventLoop.unlock();
+        }
+    }
+
+    /**
+     * Turns adaptive buffering on or off. With it on, the line doubles the
+     * target length of its buffer whenever it runs out of data while started,
+     * up to eight times the length it was opened with, and halves it again
+     * after it has played for a while without running out, down to the length
+     * it was opened with. Lines then need not be opened with buffers large
+     * enough for the worst case, and so pay for that latency only while they
+     * need it.
+     *
+     * The buffer is changed without waiting for the server; see
+     * {@link #getGrantedLatency()} for the buffer currently in use.
+     *
+     * @param enabled
+     *            true to adapt the buffer to the underflows
+     */
+    public void setAdaptiveBuffering(boolean enabled) {
+        adaptiveBuffering = enabled;
+        if (!isOpen()) {
+            return;
+        }
+        eventLoop.lock();
+        try {
+            lastBufferChange = System.nanoTime();
+        } finally {
+            eventLoop.unlock();
+        }
+    }
+
+    /*
+     * Underflow callback: running out of data while playing, and not because
+     * of drain(), means the buffer is too small for how the line is fed
+     */
+    private void growBuffer() {
+        if (!adaptiveBuffering || !isStarted || writeInterrupted
+                || !isOpen()) {
+            return;
+        }
+        if (targetLength >= maximumTargetLength) {
+            lastBufferChange = System.nanoTime();
+            return;
+        }
+        setTargetLength(Math.min(targetLength * 2, maximumTargetLength));
+    }
+
+    /*
+     * Write callback: gives back some of the buffer once the line has played
+     * for STABLE_NANOS without running out of data
+     */
+    private void shrinkBufferIfStable() {
+        if (!adaptiveBuffering || targetLength <= minimumTargetLength
+                || !isOpen()) {
+            return;
+        }
+        if (borrowedBuffer != null) {
+            // commitWrite() counts on the room the buffer was lent for
+            return;
+        }
+        if (System.nanoTime() - lastBufferChange < STABLE_NANOS) {
+            return;
+        }
+        setTargetLength(Math.max(targetLength / 2, minimumTargetLength));
+    }
+
+    /*
+     * Asks the server for a new target length, without waiting for it. The
+     * event loop lock must be held
+     */
+    private void setTargetLength(int length) {
+        int frameSize = currentFormat.getFrameSize();
+        length = Math.max(frameSize, length - length % frameSize);
+        int minimumRequest = Math.max(frameSize, length / 4 - (length / 4)
+                % frameSize);
+
+        StreamBufferAttributes current = stream.getBufferAttributes();
+        StreamBufferAttributes attributes = new StreamBufferAttributes(
+                current.getMaxLength(), length, Math.min(
+                        current.getPreBuffering(), length), minimumRequest,
+                current.getFragmentSize());
+        stream.setBufferAtrributes(attributes).releaseWhenDone();
+
+        Debug.println(DebugLevel.Verbose, "PulseAudioSourceDataLine: "
+                + "target length changed from " + targetLength + " to "
+                + length);
+        targetLength = length;
+        lastBufferChange = System.nanoTime();
     }
 
     @Override
     public int available() {
-        synchronized (eventLoop.threadLock) {
-            return stream.getWritableSize();
+        ByteRing ring = this.ring;
+        if (!isOpen() || ring == null) {
+            return 0;
         }
+        return ring.free();
     };
 
+    @Override
+    public int getBytesInBuffer() {
+        ByteRing ring = this.ring;
+        if (ring == null) {
+            return super.getBytesInBuffer();
+        }
+        // what is in the ring has not reached the server yet
+        return super.getBytesInBuffer() + ring.size();
+    }
+
     @Override
     public int getFramePosition() {
-        return (int) framesSinceOpen;
+        return (int) getLongFramePosition();
     }
 
+    /**
+     * The number of frames played since the line was opened, as heard rather
+     * than as written, from the server's interpolated timing.
+     */
     @Override
     public long getLongFramePosition() {
-        return framesSinceOpen;
+        return getPlayedFrames(framesSinceOpen);
     }
 
     @Override
     public long getMicrosecondPosition() {
 
         float frameRate = currentFormat.getFrameRate();
-        float time = framesSinceOpen / frameRate; // seconds
+        float time = getLongFramePosition() / frameRate; // seconds
         long microseconds = (long) (time * SECONDS_TO_MICROSECONDS);
         return microseconds;
     }
@@ -269,47 +1083,123 @@ public final class PulseAudioSourceDataLine extends PulseAudioDataLine
         synchronized (this) {
             writeInterrupted = true;
         }
+        wakeWriter();
 
-        do {
-            synchronized (this) {
-                if (!isOpen()) {
-                    return;
-                }
-                if (getBytesInBuffer() == 0) {
-                    return;
-                }
-                if (isStarted) {
-                    break;
-                }
-                try {
-                    this.wait(100);
-                } catch (InterruptedException e) {
-                    return;
+        // wait for start() without holding a monitor, so that a virtual
+        // thread waiting here does not pin its carrier
+        while (true) {
+            if (!isOpen()) {
+                return;
+            }
+            if (getBytesInBuffer() == 0) {
+                return;
+            }
+            if (isStarted) {
+                break;
+            }
+            eventLoop.lock();
+            try {
+                if (!isStarted) {
+                    eventLoop.await(dataCondition, 100);
                 }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                eventLoop.unlock();
             }
-        } while (!isStarted);
+        }
+
+        if (!waitUntilPumped() && !isOpen()) {
+            return;
+        }
 
         Operation operation;
 
-        synchronized (eventLoop.threadLock) {
+        eventLoop.lock();
+        try {
+            if (ring == null) {
+                return;
+            }
             operation = stream.drain();
+        } finally {
+            eventLoop.unlock();
         }
 
         operation.waitForCompletion();
         operation.releaseReference();
+        framesDrained = framesSinceOpen;
 
     }
 
+    /**
+     * Like {@link #drain()}, but does not wait for the data to be played. The
+     * drain is requested as soon as the data written so far has been sent to
+     * the server, right away on a stopped line; the server completes it once
+     * the buffered data has been played.
+     *
+     * @return a future completed once the line has been drained
+     */
+    public CompletableFuture<Void> drainAsync() {
+        synchronized (this) {
+            writeInterrupted = true;
+        }
+        wakeWriter();
+
+        if (!isOpen()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        /*
+         * pump() completes this once it has sent everything in the ring on, so
+         * no thread has to wait for it
+         */
+        CompletableFuture<Void> emptied = null;
+        eventLoop.lock();
+        try {
+            ByteRing ring = this.ring;
+            if (ring != null && ring.size() > 0 && isStarted) {
+                if (ringEmptied == null) {
+                    ringEmptied = new CompletableFuture<Void>();
+                }
+                emptied = ringEmptied;
+            }
+        } finally {
+            eventLoop.unlock();
+        }
+
+        if (emptied == null) {
+            return requestDrain();
+        }
+        return emptied.thenCompose(v -> requestDrain());
+    }
+
+    private CompletableFuture<Void> requestDrain() {
+        Operation operation;
+        eventLoop.lock();
+        try {
+            if (!isOpen() || ring == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            operation = stream.drain();
+        } finally {
+            eventLoop.unlock();
+        }
+        long framesWritten = framesSinceOpen;
+        return operation.releaseWhenDone().thenRun(
+                () -> framesDrained = framesWritten);
+    }
+
     @Override
     public void flush() {
         synchronized (this) {
             writeInterrupted = true;
         }
+        wakeWriter();
 
         if (isOpen()) {
-            Operation operation;
-            synchronized (eventLoop.threadLock) {
-                operation = stream.flush();
+            Operation operation = flushStream();
+            if (operation == null) {
+                return;
             }
 
             operation.waitForCompletion();
@@ -318,6 +1208,72 @@ public final class PulseAudioSourceDataLine extends PulseAudioDataLine
 
     }
 
+    /**
+     * Like {@link #flush()}, but does not wait for the server to drop the
+     * buffered data.
+     *
+     * @return a future completed once the line has been flushed
+     */
+    public CompletableFuture<Void> flushAsync() {
+        synchronized (this) {
+            writeInterrupted = true;
+        }
+        wakeWriter();
+
+        if (!isOpen()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Operation operation = flushStream();
+        if (operation == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return operation.releaseWhenDone();
+    }
+
+    /*
+     * Empties the ring and asks the server to drop what it has buffered
+     *
+     * @return the flush operation, or null if the line was closed
+     */
+    private Operation flushStream() {
+        /*
+         * empty the ring once first, so that a drain waiting for it to empty
+         * lets go of the producer lock
+         */
+        eventLoop.lock();
+        try {
+            ByteRing ring = this.ring;
+            if (ring != null) {
+                ring.clear();
+            }
+        } finally {
+            eventLoop.unlock();
+        }
+
+        /*
+         * a write still under way would put its data in the ring after it was
+         * cleared, so the ring is only cleared for good with the producer lock
+         */
+        producerLock.lock();
+        try {
+            eventLoop.lock();
+            try {
+                if (ring == null) {
+                    return null;
+                }
+                ring.clear();
+                Operation operation = stream.flush();
+                signalRingEmptied();
+                return operation;
+            } finally {
+                eventLoop.unlock();
+            }
+        } finally {
+            producerLock.unlock();
+        }
+    }
+
     @Override
     synchronized public void close() {
 
@@ -326,6 +1282,15 @@ public final class PulseAudioSourceDataLine extends PulseAudioDataLine
         }
 
         writeInterrupted = true;
+        wakeWriter();
+        eventLoop.lock();
+        try {
+            ring = null;
+            signalRingEmptied();
+        } finally {
+            eventLoop.unlock();
+        }
+        borrowedBuffer = null;
 
         PulseAudioMixer parent = PulseAudioMixer.getInstance();
         parent.removeSourceLine(this);
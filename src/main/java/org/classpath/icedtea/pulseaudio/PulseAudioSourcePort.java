@@ -45,8 +45,11 @@ final class PulseAudioSourcePort extends PulseAudioPort {
 
     /* aka mic */
 
+    private static native void init_ids();
+
     static {
         SecurityWrapper.loadNativeLibrary();
+        init_ids();
     }
 
     PulseAudioSourcePort(String name) {
@@ -82,10 +85,10 @@ final class PulseAudioSourcePort extends PulseAudioPort {
     }
 
     // FIXME
-    public native byte[] native_set_volume(float newValue);
+    public native long native_set_volume(float newValue);
 
     // FIXME
-    public native byte[] native_update_volume();
+    public native long native_update_volume();
 
     @Override
     public Line.Info getLineInfo() {
@@ -37,6 +37,10 @@ exception statement from your version.
 
 package org.classpath.icedtea.pulseaudio;
 
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.concurrent.CompletableFuture;
+
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioPermission;
 import javax.sound.sampled.DataLine;
@@ -50,13 +54,6 @@ import org.classpath.icedtea.pulseaudio.Debug.DebugLevel;
 public final class PulseAudioTargetDataLine extends PulseAudioDataLine
         implements TargetDataLine {
 
-    /*
-     * This contains the data from the PulseAudio buffer that has since been
-     * dropped. If 20 bytes of a fragment of size 200 are read, the other 180
-     * are dumped in this
-     */
-    private byte[] fragmentBuffer;
-
     /*
      * these are set to true only by the respective functions (flush(), drain())
      * set to false only by read()
@@ -101,18 +98,26 @@ public final class PulseAudioTargetDataLine extends PulseAudioDataLine
     @Override
     synchronized public void open(AudioFormat format, int bufferSize)
             throws LineUnavailableException {
-        /* check for permission to record audio */
-        AudioPermission perm = new AudioPermission("record", null);
-        perm.checkGuard(null);
-
         if (isOpen()) {
             throw new IllegalStateException("already open");
         }
         super.open(format, bufferSize);
+    }
+
+    @Override
+    void beginOpen(AudioFormat format, int bufferSize)
+            throws LineUnavailableException {
+        /* check for permission to record audio */
+        AudioPermission perm = new AudioPermission("record", null);
+        perm.checkGuard(null);
+
+        super.beginOpen(format, bufferSize);
+    }
 
+    @Override
+    protected void lineOpened() {
         /* initialize all the member variables */
         framesSinceOpen = 0;
-        fragmentBuffer = null;
         flushed = false;
         drained = false;
 
@@ -130,6 +135,49 @@ public final class PulseAudioTargetDataLine extends PulseAudioDataLine
         open(format, DEFAULT_BUFFER_SIZE);
     }
 
+    /**
+     * Opens the line with its buffer sized for the given latency instead of
+     * for a buffer size: recorded data is handed to the line in fragments of
+     * about that length. {@link #getGrantedLatency()} tells what the server
+     * made of the request.
+     *
+     * @param format
+     *            the format to open the line with
+     * @param latency
+     *            the latency wanted, in microseconds
+     * @throws LineUnavailableException
+     */
+    synchronized public void openWithLatency(AudioFormat format, long latency)
+            throws LineUnavailableException {
+        if (latency <= 0) {
+            throw new IllegalArgumentException("invalid latency: " + latency);
+        }
+        requestedLatency = latency;
+        try {
+            open(format, DEFAULT_BUFFER_SIZE);
+        } finally {
+            requestedLatency = 0;
+        }
+    }
+
+    /**
+     * @return the length of the fragments the server granted, in
+     *         microseconds, or 0 if the line is not open
+     */
+    public long getGrantedLatency() {
+        if (!isOpen()) {
+            return 0;
+        }
+        StreamBufferAttributes attributes;
+        eventLoop.lock();
+        try {
+            attributes = stream.getBufferAttributes();
+        } finally {
+            eventLoop.unlock();
+        }
+        return bytesToLatency(attributes.getFragmentSize());
+    }
+
     @Override
     protected void connectLine(int bufferSize, Stream masterStream)
             throws LineUnavailableException {
@@ -140,9 +188,14 @@ public final class PulseAudioTargetDataLine extends PulseAudioDataLine
         // if 2 seconds' worth of data can fit in the buffer of the specified
         // size, we don't have to adjust the latency. Otherwise we do, so as
         // to avoid overruns.
-        long flags = Stream.FLAG_START_CORKED;
+        long flags = Stream.FLAG_START_CORKED | Stream.FLAG_AUTO_TIMING_UPDATE;
         StreamBufferAttributes bufferAttributes;
-        if (bps*2 < bufferSize) {
+        if (requestedLatency > 0) {
+            // the fragment size is what decides the latency of a recording
+            flags |= Stream.FLAG_ADJUST_LATENCY;
+            bufferAttributes = new StreamBufferAttributes(-1, -1, -1, -1,
+                    latencyToBytes(requestedLatency));
+        } else if (bps*2 < bufferSize) {
             // pulse audio completely ignores our fragmentSize attribute unless
             // ADJUST_LATENCY is set, so we just leave it at -1.
             bufferAttributes = new StreamBufferAttributes(bufferSize, -1, -1, -1, -1);
@@ -167,8 +220,11 @@ public final class PulseAudioTargetDataLine extends PulseAudioDataLine
             bufferAttributes = new StreamBufferAttributes(bufferSize, -1, -1, -1, fragmentSize);
         }
 
-        synchronized (eventLoop.threadLock) {
+        eventLoop.lock();
+        try {
             stream.connectForRecording(Stream.DEFAULT_DEVICE, flags, bufferAttributes);
+        } finally {
+            eventLoop.unlock();
         }
     }
 
@@ -198,8 +254,66 @@ public final class PulseAudioTargetDataLine extends PulseAudioDataLine
                     + " offset:" + offset + " length:" + length );
         }
 
-        /* everything ok */
+        return readFrames(data, null, offset, length);
+    }
+
+    /**
+     * Reads captured data into the remaining space of a buffer. Like
+     * {@link #read(byte[], int, int)} this blocks until the buffer is full or
+     * the line is stopped, flushed, drained or closed.
+     *
+     * For a direct buffer the data is copied from PulseAudio's record buffer
+     * straight into the buffer's memory, without allocating anything on the
+     * way. Other buffers are filled using the array based read.
+     *
+     * @param data
+     *            the buffer to fill; its position is advanced by the number
+     *            of bytes read
+     * @return the number of bytes read
+     */
+    public int read(ByteBuffer data) {
+
+        /* check state and inputs */
+
+        if (!isOpen()) {
+            // A closed line can produce zero bytes of data.
+            return 0;
+        }
+
+        if (data.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+
+        int length = data.remaining();
+        int frameSize = currentFormat.getFrameSize();
+
+        if (length % frameSize != 0) {
+            throw new IllegalArgumentException(
+                    "amount of data to read does not represent an integral number of frames");
+        }
+
+        int sizeRead;
+        if (data.isDirect()) {
+            sizeRead = readFrames(null, data, data.position(), length);
+        } else {
+            sizeRead = readFrames(data.array(), null, data.arrayOffset()
+                    + data.position(), length);
+        }
 
+        data.position(data.position() + sizeRead);
+        return sizeRead;
+    }
+
+    /*
+     * Reads length bytes to offset in either data or, if data is null, the
+     * direct buffer directData. A fragment that is only partly read stays in
+     * PulseAudio's buffer, and the next read continues from where this one
+     * stopped.
+     */
+    private int readFrames(byte[] data, ByteBuffer directData, int offset,
+            int length) {
+
+        int frameSize = currentFormat.getFrameSize();
         int position = offset;
         int remainingLength = length;
         int sizeRead = 0;
@@ -207,115 +321,73 @@ public final class PulseAudioTargetDataLine extends PulseAudioDataLine
         /* bytes read on each iteration of loop */
         int bytesRead;
 
+        boolean interrupted = false;
+
         flushed = false;
         drained = false;
 
-        /*
-         * to read, we first take stuff from the fragmentBuffer
-         */
-
-        /* on first read() of the line, fragmentBuffer is null */
-        synchronized (this) {
-            if (fragmentBuffer != null) {
-                boolean fragmentBufferSmaller = fragmentBuffer.length < length;
-                int smallerBufferLength = Math.min(fragmentBuffer.length,
-                        length);
-                System.arraycopy(fragmentBuffer, 0, data, position,
-                        smallerBufferLength);
-                framesSinceOpen += smallerBufferLength
-                        / currentFormat.getFrameSize();
-
-                if (!fragmentBufferSmaller) {
-                    /*
-                     * if fragment was larger, then we already have all the data
-                     * we need. clean up the buffer before returning. Make a new
-                     * fragmentBuffer from the remaining bytes
-                     */
-                    int remainingBytesInFragment = (fragmentBuffer.length - length);
-                    byte[] newFragmentBuffer = new byte[remainingBytesInFragment];
-                    System.arraycopy(fragmentBuffer, length, newFragmentBuffer,
-                            0, newFragmentBuffer.length);
-                    fragmentBuffer = newFragmentBuffer;
-                    return length;
-                }
-
-                /* done with fragment buffer, remove it */
-                bytesRead = smallerBufferLength;
-                sizeRead += bytesRead;
-                position += bytesRead;
-                remainingLength -= bytesRead;
-                fragmentBuffer = null;
-            }
-        }
-
-        /*
-         * if we need to read more data, then we read from PulseAudio's buffer
-         */
         while (remainingLength != 0) {
             synchronized (this) {
 
                 if (!isOpen() || !isStarted) {
-                    return sizeRead;
+                    break;
                 }
 
                 if (flushed) {
                     flushed = false;
-                    return sizeRead;
+                    break;
                 }
 
                 if (drained) {
                     drained = false;
-                    return sizeRead;
+                    break;
                 }
+            }
 
-                byte[] currentFragment;
-                synchronized (eventLoop.threadLock) {
-
-                    /* read a fragment, and drop it from the server */
-                    currentFragment = stream.peek();
-
-                    stream.drop();
-                    if (currentFragment == null) {
-                        Debug.println(DebugLevel.Verbose,
-                                "PulseAudioTargetDataLine.read(): "
-                                        + " error in stream.peek()");
-                        continue;
-                    }
-
-                    bytesRead = Math.min(currentFragment.length,
+            eventLoop.lock();
+            try {
+                if (directData != null) {
+                    bytesRead = stream.read(directData, position,
                             remainingLength);
+                } else {
+                    bytesRead = stream.read(data, position, remainingLength);
+                }
 
-                    /*
-                     * we read more than we required, save the rest of the data
-                     * in the fragmentBuffer
-                     */
-                    if (bytesRead < currentFragment.length) {
-                        /* allocate a buffer to store unsaved data */
-                        fragmentBuffer = new byte[currentFragment.length
-                                - bytesRead];
-
-                        /* copy over the unsaved data */
-                        System.arraycopy(currentFragment, bytesRead,
-                                fragmentBuffer, 0, currentFragment.length
-                                        - bytesRead);
+                if (bytesRead == 0) {
+                    /* nothing recorded yet; wait for the next read callback */
+                    try {
+                        eventLoop.await(dataCondition, 100);
+                    } catch (InterruptedException e) {
+                        // check the line state again, and pass the interrupt
+                        // on when done
+                        interrupted = true;
                     }
+                    continue;
+                }
+            } finally {
+                eventLoop.unlock();
+            }
 
-                    System.arraycopy(currentFragment, 0, data, position,
-                            bytesRead);
+            if (bytesRead < 0) {
+                Debug.println(DebugLevel.Verbose,
+                        "PulseAudioTargetDataLine.read(): "
+                                + " error in stream.read()");
+                break;
+            }
 
-                    sizeRead += bytesRead;
-                    position += bytesRead;
-                    remainingLength -= bytesRead;
-                    framesSinceOpen += bytesRead / currentFormat.getFrameSize();
-                }
+            synchronized (this) {
+                framesSinceOpen += bytesRead / frameSize;
             }
+            sizeRead += bytesRead;
+            position += bytesRead;
+            remainingLength -= bytesRead;
         }
 
-        // all the data should have been played by now
-        assert (sizeRead == length);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
 
         return sizeRead;
-
     }
 
     @Override
@@ -352,16 +424,45 @@ public final class PulseAudioTargetDataLine extends PulseAudioDataLine
 
             /* flush the buffer on pulseaudio's side */
             Operation operation;
-            synchronized (eventLoop.threadLock) {
+            eventLoop.lock();
+            try {
                 operation = stream.flush();
+            } finally {
+                eventLoop.unlock();
             }
             operation.waitForCompletion();
             operation.releaseReference();
         }
 
         flushed = true;
-        /* flush the partial fragment we stored */
-        fragmentBuffer = null;
+    }
+
+    /**
+     * Like {@link #flush()}, but does not wait for the server to drop the
+     * captured data.
+     *
+     * @return a future completed once the line has been flushed
+     */
+    public CompletableFuture<Void> flushAsync() {
+        if (!isOpen()) {
+            synchronized (this) {
+                flushed = true;
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Operation operation;
+        eventLoop.lock();
+        try {
+            operation = stream.flush();
+        } finally {
+            eventLoop.unlock();
+        }
+        return operation.releaseWhenDone().thenRun(() -> {
+            synchronized (this) {
+                flushed = true;
+            }
+        });
     }
 
     @Override
@@ -371,8 +472,11 @@ public final class PulseAudioTargetDataLine extends PulseAudioDataLine
             return 0;
         }
 
-        synchronized (eventLoop.threadLock) {
+        eventLoop.lock();
+        try {
             return stream.getReableSize();
+        } finally {
+            eventLoop.unlock();
         }
     }
 
@@ -411,6 +515,18 @@ public final class PulseAudioTargetDataLine extends PulseAudioDataLine
         fireLineEvent(new LineEvent(this, LineEvent.Type.STOP, framesSinceOpen));
     }
 
+    @Override
+    public CompletableFuture<Void> startAsync() {
+        return super.startAsync().thenRun(() -> fireLineEvent(
+                new LineEvent(this, LineEvent.Type.START, framesSinceOpen)));
+    }
+
+    @Override
+    public CompletableFuture<Void> stopAsync() {
+        return super.stopAsync().thenRun(() -> fireLineEvent(
+                new LineEvent(this, LineEvent.Type.STOP, framesSinceOpen)));
+    }
+
     @Override
     public Line.Info getLineInfo() {
         return new DataLine.Info(TargetDataLine.class, supportedFormats,
@@ -44,8 +44,11 @@ final class PulseAudioTargetPort extends PulseAudioPort {
 
     /* aka speaker */
 
+    private static native void init_ids();
+
     static {
         SecurityWrapper.loadNativeLibrary();
+        init_ids();
     }
 
     PulseAudioTargetPort(String name) {
@@ -75,10 +78,10 @@ final class PulseAudioTargetPort extends PulseAudioPort {
     }
 
     // FIXME
-    public native byte[] native_set_volume(float newValue);
+    public native long native_set_volume(float newValue);
 
     // FIXME
-    public native byte[] native_update_volume();
+    public native long native_update_volume();
 
     @Override
     public Line.Info getLineInfo() {
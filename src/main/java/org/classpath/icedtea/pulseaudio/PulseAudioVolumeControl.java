@@ -37,6 +37,8 @@ exception statement from your version.
 
 package org.classpath.icedtea.pulseaudio;
 
+import java.util.concurrent.CompletableFuture;
+
 import javax.sound.sampled.FloatControl;
 
 final class PulseAudioVolumeControl extends FloatControl {
@@ -75,10 +77,38 @@ final class PulseAudioVolumeControl extends FloatControl {
         line.setCachedVolume(newValue);
     }
 
+    /*
+     * Like setValue(), but does not wait for the server. The cached volume is
+     * updated once the server has applied the new value
+     */
+    CompletableFuture<Void> setValueAsync(float newValue) {
+        if (newValue > MAX_VOLUME || newValue < MIN_VOLUME) {
+            throw new IllegalArgumentException("invalid value");
+        }
+
+        if (!line.isOpen()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Operation op;
+        eventLoop.lock();
+        try {
+            op = new Operation(line.native_set_volume(newValue), eventLoop);
+        } finally {
+            eventLoop.unlock();
+        }
+
+        return op.releaseWhenDone().thenRun(
+                () -> line.setCachedVolume(newValue));
+    }
+
     protected synchronized void setStreamVolume(float newValue) {
         Operation op;
-        synchronized (eventLoop.threadLock) {
-            op = new Operation(line.native_set_volume(newValue));
+        eventLoop.lock();
+        try {
+            op = new Operation(line.native_set_volume(newValue), eventLoop);
+        } finally {
+            eventLoop.unlock();
         }
 
         op.waitForCompletion();
@@ -88,8 +118,11 @@ final class PulseAudioVolumeControl extends FloatControl {
 
     public synchronized float getValue() {
         Operation op;
-        synchronized (eventLoop.threadLock) {
-            op = new Operation(line.native_update_volume());
+        eventLoop.lock();
+        try {
+            op = new Operation(line.native_update_volume(), eventLoop);
+        } finally {
+            eventLoop.unlock();
         }
 
         op.waitForCompletion();
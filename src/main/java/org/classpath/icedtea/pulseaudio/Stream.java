@@ -37,9 +37,8 @@ exception statement from your version.
 
 package org.classpath.icedtea.pulseaudio;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
 
 import javax.sound.sampled.LineUnavailableException;
 
@@ -160,14 +159,51 @@ final class Stream {
 
     public static final String DEFAULT_DEVICE = null;
 
+    /*
+     * Indices into the array filled by getTimingInfo(). Times are in
+     * microseconds and the indices in bytes.
+     */
+    static final int TIMING_TIME = 0;
+    static final int TIMING_LATENCY = 1;
+    static final int TIMING_READ_INDEX = 2;
+    static final int TIMING_WRITE_INDEX = 3;
+    static final int TIMING_PLAYING = 4;
+    static final int TIMING_TIMESTAMP = 5;
+    static final int TIMING_INFO_SIZE = 6;
+
+    /*
+     * Bits of callbackMask. The native callbacks only call into java when
+     * their bit is set, i.e. when there is a listener to tell. State and
+     * buffer attribute callbacks are always delivered because Stream itself
+     * needs them.
+     */
+    static final int CALLBACK_WRITE = 1 << 0;
+    static final int CALLBACK_READ = 1 << 1;
+    static final int CALLBACK_OVERFLOW = 1 << 2;
+    static final int CALLBACK_UNDERFLOW = 1 << 3;
+    static final int CALLBACK_PLAYBACK_STARTED = 1 << 4;
+    static final int CALLBACK_LATENCY_UPDATE = 1 << 5;
+    static final int CALLBACK_MOVED = 1 << 6;
+    static final int CALLBACK_SUSPENDED = 1 << 7;
+
+    // read by the native callbacks
+    private volatile int callbackMask = 0;
+    private final Object callbackMaskMutex = new Object();
+
     // stores a pointer to pa_stream
-    private byte[] streamPointer;
+    private long streamPointer;
     // stores a pointer to the java_context/this object for callbacks
-    private byte[] contextPointer;
+    private long contextPointer;
+
+    // the event loop whose context the stream belongs to
+    private final EventLoop eventLoop;
+
+    private static native void init_ids();
 
     static {
         SecurityWrapper.loadNativeLibrary();
         init_constants();
+        init_ids();
     }
 
     private Format format;
@@ -176,25 +212,25 @@ final class Stream {
     private StreamBufferAttributes bufAttr = new StreamBufferAttributes(0,0,0,0,0);
     private static final Object bufAttrMutex = new Object();
 
-    private List<StateListener> stateListeners;
-    private List<WriteListener> writeListeners;
-    private List<ReadListener> readListeners;
-    private List<OverflowListener> overflowListeners;
-    private List<UnderflowListener> underflowListeners;
-    private List<PlaybackStartedListener> playbackStartedListeners;
-    private List<LatencyUpdateListener> latencyUpdateListeners;
-    private List<MovedListener> movedListeners;
-    private List<SuspendedListener> suspendedListeners;
-    private List<CorkListener> corkListeners;
-
-    private native void native_pa_stream_new(byte[] contextPointer,
+    private ListenerList<StateListener> stateListeners;
+    private ListenerList<WriteListener> writeListeners;
+    private ListenerList<ReadListener> readListeners;
+    private ListenerList<OverflowListener> overflowListeners;
+    private ListenerList<UnderflowListener> underflowListeners;
+    private ListenerList<PlaybackStartedListener> playbackStartedListeners;
+    private ListenerList<LatencyUpdateListener> latencyUpdateListeners;
+    private ListenerList<MovedListener> movedListeners;
+    private ListenerList<SuspendedListener> suspendedListeners;
+    private ListenerList<CorkListener> corkListeners;
+
+    private native void native_pa_stream_new(long contextPointer,
             String name, String format, int sampleRate, int channels);
 
     private native void native_pa_stream_unref();
 
     private native long native_pa_stream_get_state();
 
-    private native byte[] native_pa_stream_get_context();
+    private native long native_pa_stream_get_context();
 
     private native int native_pa_stream_get_index();
 
@@ -207,31 +243,40 @@ final class Stream {
     private native int native_pa_stream_connect_playback(String name,
             int bufferMaxLength, int bufferTargetLength,
             int bufferPreBuffering, int bufferMinimumRequest,
-            int bufferFragmentSize, long flags, byte[] volumePointer,
-            byte[] sync_streamPointer);
+            int bufferFragmentSize, long flags, long volumePointer,
+            long sync_streamPointer);
 
     private native int native_pa_stream_connect_record(String name,
             int bufferMaxLength, int bufferTargetLength,
             int bufferPreBuffering, int bufferMinimumRequest,
-            int bufferFragmentSize, long flags, byte[] volumePointer,
-            byte[] sync_streamPointer);
+            int bufferFragmentSize, long flags, long volumePointer,
+            long sync_streamPointer);
 
     private native int native_pa_stream_disconnect();
 
-    private native int native_pa_stream_write(byte[] data, int offset,
-            int length);
+    private native int native_pa_stream_write_available_direct(
+            ByteBuffer data, int offset, int length, int frameSize);
 
-    private native byte[] native_pa_stream_peek();
+    private native ByteBuffer native_pa_stream_begin_write(int length,
+            int frameSize);
 
-    private native int native_pa_stream_drop();
+    private native int native_pa_stream_commit_write(int length);
+
+    private native int native_pa_stream_cancel_write();
+
+    private native int native_pa_stream_read(byte[] data, int offset,
+            int length);
+
+    private native int native_pa_stream_read_direct(ByteBuffer data,
+            int offset, int length);
 
     private native int native_pa_stream_writable_size();
 
     private native int native_pa_stream_readable_size();
 
-    private native byte[] native_pa_stream_drain();
+    private native long native_pa_stream_drain();
 
-    private native byte[] native_pa_stream_updateTimingInfo();
+    private native long native_pa_stream_updateTimingInfo();
 
     public native int bytesInBuffer();
 
@@ -243,9 +288,9 @@ final class Stream {
 
     private native int native_pa_stream_is_corked();
 
-    private native byte[] native_pa_stream_cork(int b);
+    private native long native_pa_stream_cork(int b);
 
-    private native byte[] native_pa_stream_flush();
+    private native long native_pa_stream_flush();
 
     /*
      * pa_operation pa_stream_prebuf (pa_streams, pa_stream_success_cb_t cb,
@@ -253,10 +298,10 @@ final class Stream {
      * structure.
      */
 
-    private native byte[] native_pa_stream_trigger();
+    private native long native_pa_stream_trigger();
 
     /* returns an operationPointer */
-    private native byte[] native_pa_stream_set_name(String name);
+    private native long native_pa_stream_set_name(String name);
 
     /* Return the current playback/recording time */
     private native long native_pa_stream_get_time();
@@ -268,6 +313,7 @@ final class Stream {
      * const pa_timing_info pa_stream_get_timing_info (pa_streams) Return the
      * latest raw timing data structure.
      */
+    private native boolean native_pa_stream_get_timing_info(long[] timing);
 
     private native StreamSampleSpecification native_pa_stream_get_sample_spec();
 
@@ -277,14 +323,14 @@ final class Stream {
      */
     private native StreamBufferAttributes native_pa_stream_get_buffer_attr();
 
-    private native byte[] native_pa_stream_set_buffer_attr(
+    private native long native_pa_stream_set_buffer_attr(
             StreamBufferAttributes info);
 
-    private native byte[] native_pa_stream_update_sample_rate(int rate);
+    private native long native_pa_stream_update_sample_rate(int rate);
 
-    native byte[] native_set_volume(float newValue);
+    native long native_set_volume(float newValue);
 
-    native byte[] native_update_volume();
+    native long native_update_volume();
 
     /*
      * pa_operation pa_stream_proplist_update (pa_streams, pa_update_mode_t
@@ -300,147 +346,153 @@ final class Stream {
      * pa_stream_set_monitor_stream() ebfore.
      */
 
-    Stream(byte[] contextPointer, String name, Format format, int sampleRate,
+    /*
+     * Must be called with the lock of eventLoop held
+     */
+    Stream(EventLoop eventLoop, String name, Format format, int sampleRate,
             int channels) {
         // System.out.println("format: " + format.toString());
 
-        stateListeners = new LinkedList<StateListener>();
-        writeListeners = new LinkedList<WriteListener>();
-        readListeners = new LinkedList<ReadListener>();
-        overflowListeners = new LinkedList<OverflowListener>();
-        underflowListeners = new LinkedList<UnderflowListener>();
-        playbackStartedListeners = new LinkedList<PlaybackStartedListener>();
-        latencyUpdateListeners = new LinkedList<LatencyUpdateListener>();
-        movedListeners = new LinkedList<MovedListener>();
-        suspendedListeners = new LinkedList<SuspendedListener>();
-        corkListeners = new LinkedList<CorkListener>();
+        stateListeners = new ListenerList<StateListener>(
+                new StateListener[0]);
+        writeListeners = new ListenerList<WriteListener>(
+                new WriteListener[0]);
+        readListeners = new ListenerList<ReadListener>(
+                new ReadListener[0]);
+        overflowListeners = new ListenerList<OverflowListener>(
+                new OverflowListener[0]);
+        underflowListeners = new ListenerList<UnderflowListener>(
+                new UnderflowListener[0]);
+        playbackStartedListeners = new ListenerList<PlaybackStartedListener>(
+                new PlaybackStartedListener[0]);
+        latencyUpdateListeners = new ListenerList<LatencyUpdateListener>(
+                new LatencyUpdateListener[0]);
+        movedListeners = new ListenerList<MovedListener>(
+                new MovedListener[0]);
+        suspendedListeners = new ListenerList<SuspendedListener>(
+                new SuspendedListener[0]);
+        corkListeners = new ListenerList<CorkListener>(
+                new CorkListener[0]);
         this.format = format;
+        this.eventLoop = eventLoop;
 
         StreamSampleSpecification spec = new StreamSampleSpecification(format,
                 sampleRate, channels);
 
-        native_pa_stream_new(contextPointer, name, spec.getFormat().toString(),
-                spec.getRate(), spec.getChannels());
+        native_pa_stream_new(eventLoop.getContextPointer(), name,
+                spec.getFormat().toString(), spec.getRate(), spec.getChannels());
     }
 
     void addStateListener(StateListener listener) {
-        synchronized (stateListeners) {
-            stateListeners.add(listener);
-        }
+        stateListeners.add(listener);
     }
 
     void removeStateListener(StateListener listener) {
-        synchronized (stateListeners) {
-            stateListeners.remove(listener);
-        }
+        stateListeners.remove(listener);
 
     }
 
     void addWriteListener(WriteListener listener) {
-        synchronized (writeListeners) {
-            writeListeners.add(listener);
-        }
+        writeListeners.add(listener);
+        updateCallbackMask(CALLBACK_WRITE, writeListeners);
     }
 
     void removeWriteListener(WriteListener listener) {
-        synchronized (writeListeners) {
-            writeListeners.remove(listener);
-        }
+        writeListeners.remove(listener);
+        updateCallbackMask(CALLBACK_WRITE, writeListeners);
     }
 
     void addReadListener(ReadListener listener) {
-        synchronized (readListeners) {
-            readListeners.add(listener);
-        }
+        readListeners.add(listener);
+        updateCallbackMask(CALLBACK_READ, readListeners);
     }
 
     void removeReadListener(ReadListener listener) {
-        synchronized (readListeners) {
-            readListeners.remove(listener);
-        }
+        readListeners.remove(listener);
+        updateCallbackMask(CALLBACK_READ, readListeners);
     }
 
     void addOverflowListener(OverflowListener listener) {
-        synchronized (overflowListeners) {
-            overflowListeners.add(listener);
-        }
+        overflowListeners.add(listener);
+        updateCallbackMask(CALLBACK_OVERFLOW, overflowListeners);
     }
 
     void removeOverflowListener(OverflowListener listener) {
-        synchronized (overflowListeners) {
-            overflowListeners.remove(listener);
-        }
+        overflowListeners.remove(listener);
+        updateCallbackMask(CALLBACK_OVERFLOW, overflowListeners);
     }
 
     void addUnderflowListener(UnderflowListener listener) {
-        synchronized (underflowListeners) {
-            underflowListeners.add(listener);
-        }
+        underflowListeners.add(listener);
+        updateCallbackMask(CALLBACK_UNDERFLOW, underflowListeners);
     }
 
     void removeUnderflowListener(UnderflowListener listener) {
-        synchronized (underflowListeners) {
-            underflowListeners.remove(listener);
-        }
+        underflowListeners.remove(listener);
+        updateCallbackMask(CALLBACK_UNDERFLOW, underflowListeners);
     }
 
     void addCorkListener(CorkListener listener) {
-        synchronized (corkListeners) {
-            corkListeners.add(listener);
-        }
+        corkListeners.add(listener);
     }
 
     void removeCorkListener(CorkListener listener) {
-        synchronized (corkListeners) {
-            corkListeners.remove(listener);
-        }
+        corkListeners.remove(listener);
     }
 
     void addPlaybackStartedListener(PlaybackStartedListener listener) {
-        synchronized (playbackStartedListeners) {
-            playbackStartedListeners.add(listener);
-        }
+        playbackStartedListeners.add(listener);
+        updateCallbackMask(CALLBACK_PLAYBACK_STARTED, playbackStartedListeners);
     }
 
     void removePlaybackStartedListener(PlaybackStartedListener listener) {
-        synchronized (playbackStartedListeners) {
-            playbackStartedListeners.remove(listener);
-        }
+        playbackStartedListeners.remove(listener);
+        updateCallbackMask(CALLBACK_PLAYBACK_STARTED, playbackStartedListeners);
     }
 
     void addLatencyUpdateListener(LatencyUpdateListener listener) {
-        synchronized (latencyUpdateListeners) {
-            latencyUpdateListeners.add(listener);
-        }
+        latencyUpdateListeners.add(listener);
+        updateCallbackMask(CALLBACK_LATENCY_UPDATE, latencyUpdateListeners);
     }
 
     void removeLatencyUpdateListener(LatencyUpdateListener listener) {
-        synchronized (playbackStartedListeners) {
-            latencyUpdateListeners.remove(listener);
-        }
+        latencyUpdateListeners.remove(listener);
+        updateCallbackMask(CALLBACK_LATENCY_UPDATE, latencyUpdateListeners);
     }
 
     void addMovedListener(MovedListener listener) {
-        synchronized (movedListeners) {
-            movedListeners.add(listener);
-        }
+        movedListeners.add(listener);
+        updateCallbackMask(CALLBACK_MOVED, movedListeners);
     }
 
     void removeMovedListener(MovedListener listener) {
-        synchronized (movedListeners) {
-            movedListeners.remove(listener);
-        }
+        movedListeners.remove(listener);
+        updateCallbackMask(CALLBACK_MOVED, movedListeners);
     }
 
     void addSuspendedListener(SuspendedListener listener) {
-        synchronized (suspendedListeners) {
-            suspendedListeners.add(listener);
-        }
+        suspendedListeners.add(listener);
+        updateCallbackMask(CALLBACK_SUSPENDED, suspendedListeners);
     }
 
     void removeSuspendedListener(SuspendedListener listener) {
-        synchronized (suspendedListeners) {
-            suspendedListeners.remove(listener);
+        suspendedListeners.remove(listener);
+        updateCallbackMask(CALLBACK_SUSPENDED, suspendedListeners);
+    }
+
+    /*
+     * Wants the callback as long as listeners has any listener in it. The
+     * list is looked at with the mutex held, so that when listeners are added
+     * and removed at the same time, whichever gets here last sees the list as
+     * both left it.
+     */
+    private void updateCallbackMask(int callback, ListenerList<?> listeners) {
+        synchronized (callbackMaskMutex) {
+            if (!listeners.isEmpty()) {
+                callbackMask |= callback;
+            } else {
+                callbackMask &= ~callback;
+            }
         }
     }
 
@@ -448,7 +500,7 @@ final class Stream {
         return checkNativeStreamState(native_pa_stream_get_state());
     }
 
-    byte[] getContextPointer() {
+    long getContextPointer() {
         return native_pa_stream_get_context();
     }
 
@@ -508,8 +560,8 @@ final class Stream {
      *            <code>null</code for the default device
      * @throws LineUnavailableException
      */
-    void connectForPlayback(String deviceName,
-            StreamBufferAttributes bufferAttributes, byte[] syncStreamPointer)
+    void connectForPlayback(String deviceName, long flags,
+            StreamBufferAttributes bufferAttributes, long syncStreamPointer)
             throws LineUnavailableException {
 
         int returnValue = native_pa_stream_connect_playback(
@@ -519,7 +571,7 @@ final class Stream {
                               bufferAttributes.getPreBuffering(),
                               bufferAttributes.getMinimumRequest(),
                               bufferAttributes.getFragmentSize(),
-                              FLAG_START_CORKED, null, syncStreamPointer
+                              flags, 0, syncStreamPointer
                           );
         if (returnValue < 0) {
             throw new LineUnavailableException(
@@ -544,7 +596,7 @@ final class Stream {
                               bufferAttributes.getPreBuffering(),
                               bufferAttributes.getMinimumRequest(),
                               bufferAttributes.getFragmentSize(),
-                              flags, null, null
+                              flags, 0, 0
                           );
         if (returnValue < 0) {
             throw new LineUnavailableException(
@@ -561,45 +613,107 @@ final class Stream {
     }
 
     /**
-     * Write data to the server
+     * Write as much data from a direct buffer as the server will take right
+     * now, in one call: the writable size is capped at length and rounded
+     * down to whole frames, and that many bytes are written. The buffer's
+     * memory is passed to PulseAudio without being copied into a java array
+     * first.
      *
      * @param data
+     *            a direct buffer
+     * @param offset
+     *            the absolute index in data to start writing from
      * @param length
-     * @return
+     *            the maximum number of bytes to write
+     * @param frameSize
+     * @return the number of bytes written, 0 if not even one frame fits, or a
+     *         negative value on error
      */
-    int write(byte[] data, int offset, int length) {
-        return native_pa_stream_write(data, offset, length);
+    int writeAvailable(ByteBuffer data, int offset, int length, int frameSize) {
+        return native_pa_stream_write_available_direct(data, offset, length,
+                frameSize);
     }
 
     /**
-     * Read the next fragment from the buffer (for recording).
+     * Borrow memory from the server to write up to length bytes of data into.
+     * Data put in it is sent with commitWrite() without being copied again.
+     * Only one buffer can be borrowed at a time, and it must not be used after
+     * commitWrite() or cancelWrite().
      *
+     * @param length
+     *            the maximum number of bytes wanted
+     * @param frameSize
+     * @return a direct buffer over a whole number of frames, or null if not
+     *         even one frame can be written right now
+     */
+    ByteBuffer beginWrite(int length, int frameSize) {
+        return native_pa_stream_begin_write(length, frameSize);
+    }
+
+    /**
+     * Send the first length bytes of the buffer from beginWrite() to the
+     * server.
+     *
+     * @param length
+     * @return a negative value on error
+     */
+    int commitWrite(int length) {
+        return native_pa_stream_commit_write(length);
+    }
+
+    /**
+     * Give back the buffer from beginWrite() without writing anything.
+     */
+    void cancelWrite() {
+        native_pa_stream_cancel_write();
+    }
+
+    /**
+     * Copy recorded data from the current fragment into an array. Only the
+     * bytes copied are touched; see {@link #read(ByteBuffer, int, int)}.
      *
      * @param data
+     * @param offset
+     *            the index in data to start copying to
+     * @param length
+     *            the maximum number of bytes to copy
+     * @return the number of bytes copied, 0 if no data is available, or a
+     *         negative value on error
      */
-    byte[] peek() {
-        return native_pa_stream_peek();
+    int read(byte[] data, int offset, int length) {
+        return native_pa_stream_read(data, offset, length);
     }
 
     /**
+     * Copy recorded data from the current fragment straight into a direct
+     * buffer. The fragment is dropped once all of it has been copied out;
+     * until then later calls continue where this one stopped.
      *
-     * Remove the current fragment on record streams.
+     * @param data
+     *            a direct buffer
+     * @param offset
+     *            the absolute index in data to start copying to
+     * @param length
+     *            the maximum number of bytes to copy
+     * @return the number of bytes copied, 0 if no data is available, or a
+     *         negative value on error
      */
-    void drop() {
-        native_pa_stream_drop();
+    int read(ByteBuffer data, int offset, int length) {
+        return native_pa_stream_read_direct(data, offset, length);
     }
 
     /**
-     * Return the number of bytes that may be written using write().
+     * Return the number of bytes the server takes right now, so that
+     * beginWrite() can be asked for that much.
      *
-     * @return
+     * @return the number of bytes, or a negative value on error
      */
     int getWritableSize() {
         return native_pa_stream_writable_size();
     }
 
     /**
-     * Return the number of bytes that may be read using peek().
+     * Return the number of bytes that may be read using read().
      *
      * @return
      */
@@ -613,13 +727,14 @@ final class Stream {
      * @return
      */
     Operation drain() {
-        Operation drainOperation = new Operation(native_pa_stream_drain());
+        Operation drainOperation = new Operation(native_pa_stream_drain(),
+                eventLoop);
         return drainOperation;
     }
 
     Operation updateTimingInfo() {
         Operation updateOperation = new Operation(
-                native_pa_stream_updateTimingInfo());
+                native_pa_stream_updateTimingInfo(), eventLoop);
         return updateOperation;
     }
 
@@ -628,52 +743,45 @@ final class Stream {
      */
     @SuppressWarnings("unused")
     private void stateCallback() {
-        synchronized(EventLoop.getEventLoop().threadLock) {
+        eventLoop.lock();
+        try {
             if (getState() == Stream.STATE_READY) {
                 setBufAttr();
             }
+        } finally {
+            eventLoop.unlock();
         }
-        synchronized (stateListeners) {
-            for (StateListener listener : stateListeners) {
-                listener.update();
-            }
+        for (StateListener listener : stateListeners.get()) {
+            listener.update();
         }
     }
 
     @SuppressWarnings("unused")
     private void writeCallback() {
-        synchronized (writeListeners) {
-            for (WriteListener listener : writeListeners) {
-                listener.update();
-            }
+        for (WriteListener listener : writeListeners.get()) {
+            listener.update();
         }
     }
 
     @SuppressWarnings("unused")
     private void readCallback() {
-        synchronized (readListeners) {
-            for (ReadListener listener : readListeners) {
-                listener.update();
-            }
+        for (ReadListener listener : readListeners.get()) {
+            listener.update();
         }
     }
 
     @SuppressWarnings("unused")
     private void overflowCallback() {
         System.out.println("overflowCallback called");
-        synchronized (overflowListeners) {
-            for (OverflowListener listener : overflowListeners) {
-                listener.update();
-            }
+        for (OverflowListener listener : overflowListeners.get()) {
+            listener.update();
         }
     }
 
     @SuppressWarnings("unused")
     private void underflowCallback() {
-        synchronized (underflowListeners) {
-            for (UnderflowListener listener : underflowListeners) {
-                listener.update();
-            }
+        for (UnderflowListener listener : underflowListeners.get()) {
+            listener.update();
         }
     }
 
@@ -683,10 +791,8 @@ final class Stream {
      */
     @SuppressWarnings("unused")
     private void playbackStartedCallback() {
-        synchronized (playbackStartedListeners) {
-            for (PlaybackStartedListener listener : playbackStartedListeners) {
-                listener.update();
-            }
+        for (PlaybackStartedListener listener : playbackStartedListeners.get()) {
+            listener.update();
         }
     }
 
@@ -695,10 +801,8 @@ final class Stream {
      */
     @SuppressWarnings("unused")
     private void latencyUpdateCallback() {
-        synchronized (latencyUpdateListeners) {
-            for (LatencyUpdateListener listener : latencyUpdateListeners) {
-                listener.update();
-            }
+        for (LatencyUpdateListener listener : latencyUpdateListeners.get()) {
+            listener.update();
         }
     }
 
@@ -707,19 +811,15 @@ final class Stream {
      */
     @SuppressWarnings("unused")
     private void movedCallback() {
-        synchronized (movedListeners) {
-            for (MovedListener listener : movedListeners) {
-                listener.update();
-            }
+        for (MovedListener listener : movedListeners.get()) {
+            listener.update();
         }
     }
 
     @SuppressWarnings("unused")
     private void corkCallback() {
-        synchronized (corkListeners) {
-            for (CorkListener listener : corkListeners) {
-                listener.update();
-            }
+        for (CorkListener listener : corkListeners.get()) {
+            listener.update();
         }
     }
 
@@ -729,10 +829,8 @@ final class Stream {
      */
     @SuppressWarnings("unused")
     private void suspendedCallback() {
-        synchronized (suspendedListeners) {
-            for (SuspendedListener listener : suspendedListeners) {
-                listener.update();
-            }
+        for (SuspendedListener listener : suspendedListeners.get()) {
+            listener.update();
         }
     }
 
@@ -752,7 +850,8 @@ final class Stream {
      */
     Operation cork(boolean cork) {
         int yes = cork ? 1 : 0;
-        Operation corkOperation = new Operation(native_pa_stream_cork(yes));
+        Operation corkOperation = new Operation(native_pa_stream_cork(yes),
+                eventLoop);
         return corkOperation;
     }
 
@@ -770,7 +869,8 @@ final class Stream {
      * @return
      */
     Operation flush() {
-        Operation flushOperation = new Operation(native_pa_stream_flush());
+        Operation flushOperation = new Operation(native_pa_stream_flush(),
+                eventLoop);
         return flushOperation;
     }
 
@@ -785,7 +885,8 @@ final class Stream {
      * Request immediate start of playback on this stream.
      */
     Operation triggerStart() {
-        Operation triggerOperation = new Operation(native_pa_stream_trigger());
+        Operation triggerOperation = new Operation(native_pa_stream_trigger(),
+                eventLoop);
         return triggerOperation;
     }
 
@@ -797,14 +898,17 @@ final class Stream {
      */
     Operation setName(String name) {
         Operation setNameOperation = new Operation(
-                native_pa_stream_set_name(name));
+                native_pa_stream_set_name(name), eventLoop);
         return setNameOperation;
     }
 
     /**
+     * The playback or recording position of the stream, from the last timing
+     * update. With FLAG_INTERPOLATE_TIMING it is moved on locally by the time
+     * passed since, so this does not talk to the server.
      *
-     *
-     * @return a time between ? and ?
+     * @return the time in microseconds, or -1 if there has been no timing
+     *         update yet
      */
     long getTime() {
         return native_pa_stream_get_time();
@@ -817,10 +921,23 @@ final class Stream {
         return native_pa_stream_get_latency();
     }
 
-    /*
-     * const pa_timing_info pa_stream_get_timing_info (pa_streams) Return the
-     * latest raw timing data structure.
+    /**
+     * Fill timing with a snapshot of the latest timing info, indexed by the
+     * TIMING_ constants. Nothing is sent to the server; the values are as of
+     * the last timing update, which happened at timing[TIMING_TIMESTAMP].
+     *
+     * @param timing
+     *            an array of at least TIMING_INFO_SIZE elements
+     * @return false if no timing info has been received yet, in which case
+     *         timing is left alone
      */
+    boolean getTimingInfo(long[] timing) {
+        if (timing.length < TIMING_INFO_SIZE) {
+            throw new IllegalArgumentException("timing array too small: "
+                    + timing.length);
+        }
+        return native_pa_stream_get_timing_info(timing);
+    }
 
     Format getFormat() {
         return format;
@@ -836,17 +953,19 @@ final class Stream {
     }
 
     Operation setBufferAtrributes(StreamBufferAttributes attr) {
-        return new Operation(native_pa_stream_set_buffer_attr(attr));
+        return new Operation(native_pa_stream_set_buffer_attr(attr),
+                eventLoop);
     }
 
     /**
      * Change the stream sampling rate during playback.
      */
     Operation updateSampleRate(int rate) {
-        return new Operation(native_pa_stream_update_sample_rate(rate));
+        return new Operation(native_pa_stream_update_sample_rate(rate),
+                eventLoop);
     }
 
-    byte[] getStreamPointer() {
+    long getStreamPointer() {
         return streamPointer;
     }
 
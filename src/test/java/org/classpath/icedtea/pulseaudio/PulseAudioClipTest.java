@@ -328,6 +328,7 @@ public class PulseAudioClipTest {
 		clip.stop();
 		clip.close();
 
+		((PulseAudioLine) clip).waitForEvents();
 		assertEquals(1, started);
 		assertEquals(1, stopped);
 
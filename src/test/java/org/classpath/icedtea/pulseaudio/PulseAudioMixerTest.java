@@ -45,6 +45,7 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.Clip;
 import javax.sound.sampled.DataLine;
 import javax.sound.sampled.Line;
 import javax.sound.sampled.LineEvent;
@@ -404,6 +405,31 @@ public class PulseAudioMixerTest {
 
 	}
 
+	@Test
+	public void testOpenLines() throws LineUnavailableException {
+		selectedMixer.open();
+		PulseAudioMixer mixer = (PulseAudioMixer) selectedMixer;
+
+		DataLine[] lines = new DataLine[8];
+		for (int i = 0; i < lines.length; i++) {
+			Class<?> lineClass = (i % 2 == 0) ? SourceDataLine.class : TargetDataLine.class;
+			lines[i] = (DataLine) selectedMixer.getLine(new Line.Info(lineClass));
+		}
+
+		mixer.openLines(aSupportedFormat, 10000, lines);
+		for (DataLine line : lines) {
+			assertTrue(line.isOpen());
+			assertEquals(aSupportedFormat, line.getFormat());
+		}
+		for (DataLine line : lines) {
+			line.close();
+		}
+
+		DataLine clip = (DataLine) selectedMixer.getLine(new Line.Info(Clip.class));
+		assertThrows(IllegalArgumentException.class,
+				() -> mixer.openLines(aSupportedFormat, 10000, clip));
+	}
+
 	@Disabled
 	@Test
 	public void testLongWait() throws LineUnavailableException {
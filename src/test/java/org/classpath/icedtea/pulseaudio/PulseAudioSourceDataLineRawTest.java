@@ -185,6 +185,7 @@ public class PulseAudioSourceDataLineRawTest {
 		System.out.println("waiting for thread to finish");
 		writer.join();
 
+		((PulseAudioLine) line).waitForEvents();
 		assertEquals(2, started);
 		assertEquals(2, stopped);
 
@@ -271,8 +272,12 @@ public class PulseAudioSourceDataLineRawTest {
 		line.start();
 		Stream s = line.getStream();
 		Operation o;
-		synchronized (EventLoop.getEventLoop().threadLock) {
+		EventLoop eventLoop = EventLoop.getEventLoop();
+		eventLoop.lock();
+		try {
 			o = s.unCork();
+		} finally {
+			eventLoop.unlock();
 		}
 		o.waitForCompletion();
 		o.releaseReference();
@@ -47,6 +47,7 @@ import static org.junit.jupiter.api.Assertions.fail;
 import java.io.File;
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
@@ -159,6 +160,25 @@ public class PulseAudioSourceDataLineTest {
 		listenerCalled = 0;
 	}
 
+	@Test
+	public void testOpenWithLatency() throws LineUnavailableException {
+		PulseAudioSourceDataLine line = (PulseAudioSourceDataLine) mixer
+				.getLine(new Line.Info(SourceDataLine.class));
+		sourceDataLine = line;
+
+		assertThrows(IllegalArgumentException.class,
+				() -> line.openWithLatency(aSupportedFormat, 0));
+		assertFalse(line.isOpen());
+
+		line.openWithLatency(aSupportedFormat, 20000);
+		assertTrue(line.isOpen());
+		long granted = line.getGrantedLatency();
+		assertTrue(granted > 0);
+		assertTrue(granted < 1000000);
+		line.close();
+		assertEquals(0, line.getGrantedLatency());
+	}
+
 	@Test
 	public void testOpenAndClose() throws LineUnavailableException {
 		sourceDataLine = (SourceDataLine) mixer.getLine(new Line.Info(SourceDataLine.class));
@@ -229,6 +249,247 @@ public class PulseAudioSourceDataLineTest {
 
 	}
 
+	@Test
+	public void testPlayFromDirectBuffer()
+			throws LineUnavailableException, UnsupportedAudioFileException, IOException {
+		System.out.println("This test plays a file through a direct ByteBuffer");
+
+		final ClassLoader classLoader = getClass().getClassLoader();
+		File soundFile = new File(classLoader.getResource("startup.wav").getFile());
+		AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(soundFile);
+		AudioFormat audioFormat = audioInputStream.getFormat();
+
+		PulseAudioSourceDataLine line = (PulseAudioSourceDataLine) mixer
+				.getLine(new DataLine.Info(SourceDataLine.class, audioFormat));
+		sourceDataLine = line;
+		assertNotNull(line);
+
+		line.open(audioFormat);
+		line.start();
+
+		byte[] abData = new byte[1000];
+		ByteBuffer buffer = ByteBuffer.allocateDirect(abData.length);
+		int bytesRead = 0;
+
+		while (bytesRead >= 0) {
+			bytesRead = audioInputStream.read(abData, 0, abData.length);
+			if (bytesRead > 0) {
+				buffer.clear();
+				buffer.put(abData, 0, bytesRead);
+				buffer.flip();
+				assertEquals(bytesRead, line.write(buffer));
+				assertEquals(0, buffer.remaining());
+			}
+		}
+
+		line.drain();
+		line.stop();
+		line.close();
+	}
+
+	@Test
+	public void testTimingInfo()
+			throws LineUnavailableException, UnsupportedAudioFileException, IOException {
+		System.out.println("This test reads timing snapshots while playing a file");
+
+		final ClassLoader classLoader = getClass().getClassLoader();
+		File soundFile = new File(classLoader.getResource("startup.wav").getFile());
+		AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(soundFile);
+		AudioFormat audioFormat = audioInputStream.getFormat();
+
+		PulseAudioSourceDataLine line = (PulseAudioSourceDataLine) mixer
+				.getLine(new DataLine.Info(SourceDataLine.class, audioFormat));
+		sourceDataLine = line;
+		assertNotNull(line);
+
+		long[] timing = new long[PulseAudioSourceDataLine.TIMING_INFO_SIZE];
+		assertFalse(line.getTimingInfo(timing));
+
+		line.open(audioFormat);
+		line.start();
+
+		byte[] abData = new byte[1000];
+		int bytesRead = 0;
+		int bytesWritten = 0;
+
+		while (bytesRead >= 0) {
+			bytesRead = audioInputStream.read(abData, 0, abData.length);
+			if (bytesRead > 0) {
+				bytesWritten += line.write(abData, 0, bytesRead);
+			}
+		}
+
+		line.drain();
+		assertTrue(line.getTimingInfo(timing));
+		assertTrue(timing[PulseAudioSourceDataLine.TIMING_TIMESTAMP] > 0);
+		assertTrue(timing[PulseAudioSourceDataLine.TIMING_WRITE_INDEX] <= bytesWritten);
+
+		line.stop();
+		line.close();
+		assertFalse(line.getTimingInfo(timing));
+	}
+
+	@Test
+	public void testAsyncOperations()
+			throws LineUnavailableException, UnsupportedAudioFileException, IOException {
+		System.out.println("This test plays a file using the asynchronous operations");
+
+		final ClassLoader classLoader = getClass().getClassLoader();
+		File soundFile = new File(classLoader.getResource("startup.wav").getFile());
+		AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(soundFile);
+		AudioFormat audioFormat = audioInputStream.getFormat();
+
+		PulseAudioSourceDataLine line = (PulseAudioSourceDataLine) mixer
+				.getLine(new DataLine.Info(SourceDataLine.class, audioFormat));
+		sourceDataLine = line;
+		assertNotNull(line);
+
+		line.open(audioFormat);
+		line.setNameAsync("async test").join();
+		assertEquals("async test", line.getName());
+		line.setVolumeAsync(PulseAudioVolumeControl.MAX_VOLUME).join();
+		line.startAsync().join();
+		assertTrue(line.isActive());
+
+		byte[] abData = new byte[1000];
+		int bytesRead = 0;
+
+		while (bytesRead >= 0) {
+			bytesRead = audioInputStream.read(abData, 0, abData.length);
+			if (bytesRead > 0) {
+				line.write(abData, 0, bytesRead);
+			}
+		}
+
+		line.drainAsync().join();
+		line.flushAsync().join();
+		line.stopAsync().join();
+		assertFalse(line.isActive());
+		line.close();
+	}
+
+	@Test
+	public void testPlayThroughBorrowedBuffer()
+			throws LineUnavailableException, UnsupportedAudioFileException, IOException {
+		System.out.println("This test plays a file by filling buffers borrowed from PulseAudio");
+
+		final ClassLoader classLoader = getClass().getClassLoader();
+		File soundFile = new File(classLoader.getResource("startup.wav").getFile());
+		AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(soundFile);
+		AudioFormat audioFormat = audioInputStream.getFormat();
+
+		PulseAudioSourceDataLine line = (PulseAudioSourceDataLine) mixer
+				.getLine(new DataLine.Info(SourceDataLine.class, audioFormat));
+		sourceDataLine = line;
+		assertNotNull(line);
+
+		line.open(audioFormat);
+		line.start();
+
+		int frameSize = audioFormat.getFrameSize();
+		byte[] abData = new byte[frameSize * 250];
+		int bytesRead = 0;
+
+		while (bytesRead >= 0) {
+			ByteBuffer buffer = line.beginWrite(abData.length);
+			assertTrue(buffer.isDirect());
+			assertTrue(buffer.capacity() > 0);
+			assertEquals(0, buffer.capacity() % frameSize);
+
+			bytesRead = audioInputStream.read(abData, 0, buffer.capacity());
+			if (bytesRead > 0) {
+				buffer.put(abData, 0, bytesRead);
+				assertEquals(bytesRead, line.commitWrite(bytesRead));
+			} else {
+				line.cancelWrite();
+			}
+		}
+
+		line.drain();
+		line.stop();
+		line.close();
+	}
+
+	@Test
+	public void testAdaptiveBufferingGrowsAfterUnderflow() throws LineUnavailableException, InterruptedException {
+		PulseAudioSourceDataLine line = (PulseAudioSourceDataLine) mixer
+				.getLine(new Line.Info(SourceDataLine.class));
+		sourceDataLine = line;
+
+		line.openWithLatency(aSupportedFormat, 20000);
+		long opened = line.getGrantedLatency();
+		line.setAdaptiveBuffering(true);
+		line.start();
+
+		// a short burst, then nothing: the line runs out of data
+		byte[] silence = new byte[4410];
+		line.write(silence, 0, silence.length);
+		Thread.sleep(500);
+
+		assertTrue(line.getGrantedLatency() > opened);
+		line.stop();
+		line.close();
+	}
+
+	@Test
+	public void testRenderCallback() throws LineUnavailableException, InterruptedException {
+		PulseAudioSourceDataLine line = (PulseAudioSourceDataLine) mixer
+				.getLine(new Line.Info(SourceDataLine.class));
+		sourceDataLine = line;
+
+		final int[] rendered = new int[1];
+		// asserting in the callback would throw on the event loop thread
+		final boolean[] direct = { true };
+		line.setRenderCallback(buffer -> {
+			direct[0] &= buffer.isDirect();
+			int length = buffer.remaining();
+			while (buffer.hasRemaining()) {
+				buffer.put((byte) 0);
+			}
+			rendered[0] += length;
+			return length;
+		});
+		line.open();
+		assertThrows(IllegalStateException.class, () -> line.write(new byte[4], 0, 4));
+
+		line.start();
+		Thread.sleep(500);
+		line.stop();
+		assertTrue(rendered[0] > 0);
+		assertTrue(direct[0]);
+		assertTrue(line.getLongFramePosition() > 0);
+
+		line.setRenderCallback(null);
+		line.close();
+	}
+
+	@Test
+	public void testBeginWriteTwice() throws LineUnavailableException {
+		PulseAudioSourceDataLine line = (PulseAudioSourceDataLine) mixer
+				.getLine(new Line.Info(SourceDataLine.class));
+		sourceDataLine = line;
+
+		line.open();
+		int frameSize = line.getFormat().getFrameSize();
+		line.beginWrite(frameSize * 10);
+		assertThrows(IllegalStateException.class, () -> line.beginWrite(frameSize * 10));
+		line.cancelWrite();
+		assertThrows(IllegalStateException.class, () -> line.commitWrite(0));
+		line.close();
+	}
+
+	@Test
+	public void testWriteDirectBufferIntegralNumberFrames() throws LineUnavailableException {
+		PulseAudioSourceDataLine line = (PulseAudioSourceDataLine) mixer
+				.getLine(new Line.Info(SourceDataLine.class));
+		sourceDataLine = line;
+
+		line.open();
+		int frameSize = line.getFormat().getFrameSize();
+		ByteBuffer buffer = ByteBuffer.allocateDirect((frameSize * 2) - 1);
+		assertThrows(IllegalArgumentException.class, () -> line.write(buffer));
+	}
+
 	@Test
 	public void testWriteIntegralNumberFrames() throws LineUnavailableException {
 		sourceDataLine = (SourceDataLine) mixer.getLine(new Line.Info(SourceDataLine.class));
@@ -547,6 +808,7 @@ public class PulseAudioSourceDataLineTest {
 		sourceDataLine.stop();
 		sourceDataLine.close();
 
+		((PulseAudioLine) sourceDataLine).waitForEvents();
 		assertEquals(1, started);
 		assertEquals(1, stopped);
 
@@ -606,6 +868,7 @@ public class PulseAudioSourceDataLineTest {
 		// System.out.println("waiting for thread to finish");
 		writer.join();
 
+		((PulseAudioLine) sourceDataLine).waitForEvents();
 		assertEquals(2, started);
 		assertEquals(2, stopped);
 
@@ -669,6 +932,7 @@ public class PulseAudioSourceDataLineTest {
 		// System.out.println("waiting for thread to finish");
 		writer.join();
 
+		((PulseAudioLine) sourceDataLine).waitForEvents();
 		assertEquals(3, started);
 		assertEquals(3, stopped);
 
@@ -864,6 +1128,7 @@ public class PulseAudioSourceDataLineTest {
 		sourceDataLine.open();
 		sourceDataLine.removeLineListener(openListener);
 		sourceDataLine.close();
+		((PulseAudioLine) sourceDataLine).waitForEvents();
 		assertEquals(1, listenerCalled);
 		listenerCalled = 0;
 	}
@@ -883,10 +1148,46 @@ public class PulseAudioSourceDataLineTest {
 		sourceDataLine.addLineListener(closeListener);
 		sourceDataLine.close();
 		sourceDataLine.removeLineListener(closeListener);
+		((PulseAudioLine) sourceDataLine).waitForEvents();
 		assertEquals(1, listenerCalled);
 		listenerCalled = 0;
 	}
 
+	@Test
+	public void testEventLoopAffinity() throws LineUnavailableException {
+		PulseAudioSourceDataLine line = (PulseAudioSourceDataLine) mixer
+				.getLine(new Line.Info(SourceDataLine.class));
+		int last = EventLoop.getEventLoopCount() - 1;
+		line.setEventLoopAffinity(last);
+		line.open();
+		assertEquals(last, line.eventLoop.getIndex());
+		line.close();
+
+		assertThrows(IllegalArgumentException.class,
+				() -> line.setEventLoopAffinity(last + 1));
+	}
+
+	@Test
+	public void testEventsNotOnEventLoopThread() throws LineUnavailableException {
+		listenerCalled = 0;
+		LineListener threadListener = new LineListener() {
+			public void update(LineEvent event) {
+				assertFalse(Thread.currentThread().getName().startsWith(
+						"PulseAudio Eventloop Thread"));
+				PulseAudioSourceDataLineTest.this.listenerCalled++;
+			}
+		};
+
+		sourceDataLine = (SourceDataLine) mixer.getLine(new Line.Info(SourceDataLine.class));
+		sourceDataLine.addLineListener(threadListener);
+		sourceDataLine.open();
+		sourceDataLine.close();
+		sourceDataLine.removeLineListener(threadListener);
+		((PulseAudioLine) sourceDataLine).waitForEvents();
+		assertEquals(2, listenerCalled);
+		listenerCalled = 0;
+	}
+
 	@Test
 	public void testCloseEventWrongListener() throws LineUnavailableException {
 		listenerCalled = 0;
@@ -902,6 +1203,7 @@ public class PulseAudioSourceDataLineTest {
 		sourceDataLine.addLineListener(closeListener);
 		sourceDataLine.removeLineListener(closeListener);
 		sourceDataLine.close();
+		((PulseAudioLine) sourceDataLine).waitForEvents();
 		assertEquals(0, listenerCalled);
 		listenerCalled = 0;
 
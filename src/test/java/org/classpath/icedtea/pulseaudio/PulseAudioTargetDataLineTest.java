@@ -46,6 +46,7 @@ import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
@@ -111,6 +112,25 @@ public class PulseAudioTargetDataLineTest {
 
 	}
 
+	@Test
+	public void testOpenWithLatency() throws LineUnavailableException {
+		PulseAudioTargetDataLine line = (PulseAudioTargetDataLine) mixer
+				.getLine(new Line.Info(TargetDataLine.class));
+		targetDataLine = line;
+
+		assertThrows(IllegalArgumentException.class,
+				() -> line.openWithLatency(aSupportedFormat, 0));
+		assertFalse(line.isOpen());
+
+		line.openWithLatency(aSupportedFormat, 20000);
+		assertTrue(line.isOpen());
+		long granted = line.getGrantedLatency();
+		assertTrue(granted > 0);
+		assertTrue(granted < 1000000);
+		line.close();
+		assertEquals(0, line.getGrantedLatency());
+	}
+
 	@Test
 	public void testOpenClose() throws LineUnavailableException {
 		targetDataLine = (TargetDataLine) mixer.getLine(new Line.Info(TargetDataLine.class));
@@ -207,6 +227,35 @@ public class PulseAudioTargetDataLineTest {
 
 	}
 
+	@Test
+	public void testReadDirectBuffer() throws LineUnavailableException {
+		System.out.println("This test checks that read() into a direct ByteBuffer works");
+
+		targetDataLine = (TargetDataLine) mixer.getLine(new Line.Info(TargetDataLine.class));
+		assertNotNull(targetDataLine);
+		targetDataLine.open(aSupportedFormat);
+
+		PulseAudioTargetDataLine line = (PulseAudioTargetDataLine) targetDataLine;
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1000);
+		targetDataLine.start();
+
+		assertEquals(1000, line.read(buffer));
+		assertEquals(1000, buffer.position());
+		assertTrue(buffer.get(999) != 0);
+
+		/* array and buffer reads can be mixed */
+		byte[] array = new byte[10];
+		targetDataLine.read(array, 0, array.length);
+		buffer.clear();
+		buffer.limit(998);
+		assertEquals(998, line.read(buffer));
+		assertEquals(0, buffer.remaining());
+
+		targetDataLine.stop();
+		targetDataLine.close();
+
+	}
+
 	@Test
 	public void testReadLessThanFrameSize() throws LineUnavailableException {
 		System.out.println(
@@ -493,6 +542,7 @@ public class PulseAudioTargetDataLineTest {
 		line.stop();
 		line.close();
 
+		((PulseAudioLine) line).waitForEvents();
 		assertEquals(1, started);
 		assertEquals(1, stopped);
 
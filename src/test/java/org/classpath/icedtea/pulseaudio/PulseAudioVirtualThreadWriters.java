@@ -0,0 +1,166 @@
+/* PulseAudioVirtualThreadWriters.java
+   Copyright (C) 2008 Red Hat, Inc.
+
+This file is part of IcedTea-Sound.
+
+IcedTea-Sound is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 2.
+
+IcedTea-Sound is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with IcedTea-Sound; see the file COPYING.  If not, write to
+the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+02110-1301 USA.
+
+Linking this library statically or dynamically with other modules is
+making a combined work based on this library.  Thus, the terms and
+conditions of the GNU General Public License cover the whole
+combination.
+
+As a special exception, the copyright holders of this library give you
+permission to link this library with independent modules to produce an
+executable, regardless of the license terms of these independent
+modules, and to copy and distribute the resulting executable under
+terms of your choice, provided that you also meet, for each linked
+independent module, the terms and conditions of the license of that
+module.  An independent module is a module which is not derived from
+or based on this library.  If you modify this library, you may extend
+this exception to your version of the library, but you are not
+obligated to do so.  If you do not wish to do so, delete this
+exception statement from your version.
+ */
+
+package org.classpath.icedtea.pulseaudio;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.spi.MixerProvider;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Drives many lines at once, each from its own virtual thread. Writers spend
+ * most of their time blocked waiting for the server, which must not pin
+ * their carrier threads. Needs a jvm with virtual threads; the number of
+ * writers can be set with -Dpulseaudio.benchmark.writers
+ */
+public class PulseAudioVirtualThreadWriters {
+
+	private static final int WRITERS = Integer.getInteger(
+			"pulseaudio.benchmark.writers", 200);
+	private static final int SECONDS = 2;
+
+	Mixer mixer;
+
+	AudioFormat format = new AudioFormat(44100, 16, 2, true, false);
+
+	@BeforeEach
+	public void setUp() {
+		MixerProvider mixerProvider = new PulseAudioMixerProvider();
+		Mixer.Info mixerInfos[] = mixerProvider.getMixerInfo();
+		Mixer.Info selectedMixerInfo = null;
+		for (Mixer.Info info : mixerInfos) {
+			if (info.getName().contains("PulseAudio")) {
+				selectedMixerInfo = info;
+			}
+		}
+		assertNotNull(selectedMixerInfo);
+		mixer = mixerProvider.getMixer(selectedMixerInfo);
+		assertNotNull(mixer);
+		if (mixer.isOpen()) {
+			mixer.close();
+		}
+
+	}
+
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	@Test
+	@Disabled
+	public void testManyVirtualThreadWriters() throws Exception {
+		ExecutorService executor = newVirtualThreadExecutor();
+		Assumptions.assumeTrue(executor != null, "no virtual threads");
+
+		mixer.open();
+		EventLoop eventLoop = EventLoop.getEventLoop();
+		long contendedBefore = eventLoop.getContendedLockCount();
+
+		final int bytesPerWriter = (int) format.getFrameRate()
+				* format.getFrameSize() * SECONDS;
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		long start = System.nanoTime();
+
+		for (int i = 0; i < WRITERS; i++) {
+			results.add(executor.submit(() -> {
+				SourceDataLine line = (SourceDataLine) mixer
+						.getLine(new DataLine.Info(SourceDataLine.class, format));
+				line.open(format);
+				try {
+					line.start();
+					byte[] silence = new byte[4096];
+					int written = 0;
+					while (written < bytesPerWriter) {
+						written += line.write(silence, 0,
+								Math.min(silence.length, bytesPerWriter - written));
+					}
+					line.drain();
+					return written;
+				} finally {
+					line.close();
+				}
+			}));
+		}
+
+		long total = 0;
+		for (Future<Integer> result : results) {
+			int written = result.get();
+			assertEquals(bytesPerWriter, written);
+			total += written;
+		}
+		long elapsed = System.nanoTime() - start;
+
+		executor.shutdown();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+
+		System.out.println(WRITERS + " virtual thread writers wrote " + total
+				+ " bytes in " + TimeUnit.NANOSECONDS.toMillis(elapsed)
+				+ " ms; " + (eventLoop.getContendedLockCount() - contendedBefore)
+				+ " contended locks");
+	}
+
+	@AfterEach
+	public void tearDown() {
+		if (mixer.isOpen()) {
+			mixer.close();
+		}
+	}
+
+}